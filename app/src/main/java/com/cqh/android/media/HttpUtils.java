@@ -7,31 +7,72 @@ public class HttpUtils {
     private static final String TAG = HttpUtils.class.getSimpleName();
 
     /**
-     * 得到响应头中的完整文件大小
+     * 得到响应头中的完整文件大小，超过2GB的文件也按long解析
+     *
+     * @return 响应头中没有或无法解析（比如Content-Range为bytes 0-99/*）时返回-1
      */
-    public static int getContentSize(HttpURLConnection connection) {
-        int contentSize = -1;
+    public static long getContentSize(HttpURLConnection connection) {
         String contentRange = connection.getHeaderField("Content-Range");
         if (contentRange != null) {
-            contentSize = Integer.valueOf(contentRange.substring(contentRange.indexOf("/") + 1));
-        } else {
-            String contentLength = connection.getHeaderField("Content-Length");
-            if (contentLength != null) {
-                contentSize = Integer.valueOf(contentLength);
+            return parseLong(contentRange.substring(contentRange.indexOf("/") + 1));
+        }
+        String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength != null) {
+            return parseLong(contentLength);
+        }
+        return -1;
+    }
+
+    /**
+     * 得到响应头Content-Range中的结束位置
+     *
+     * @return 没有Content-Range或无法解析时返回-1
+     */
+    public static long getRangeEnd(HttpURLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange != null) {
+            int separator = contentRange.indexOf("-");
+            int slash = contentRange.indexOf("/");
+            if (separator >= 0 && slash > separator) {
+                return parseLong(contentRange.substring(separator + 1, slash));
             }
         }
-        return contentSize;
+        return -1;
+    }
+
+    /**
+     * 得到响应头中用来判断文件是否变化的校验信息，优先使用ETag，没有时使用Last-Modified
+     *
+     * @return 都没有时返回null
+     */
+    public static String getValidator(HttpURLConnection connection) {
+        String eTag = connection.getHeaderField("ETag");
+        if (eTag != null) {
+            return eTag;
+        }
+        return connection.getHeaderField("Last-Modified");
     }
 
     /**
      * 得到请求头中的文件开始位置
      */
-    public static int getRangeStart(HttpURLConnection connection) {
+    public static long getRangeStart(HttpURLConnection connection) {
         String range = connection.getRequestProperty("Range");
         if (range != null) {
-            return Integer.valueOf(range.substring(range.indexOf("bytes=") + 6, range.indexOf("-")));
+            return Math.max(parseLong(range.substring(range.indexOf("bytes=") + 6, range.indexOf("-"))), 0);
         }
         return 0;
     }
 
+    /**
+     * @return 无法解析时返回-1
+     */
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
 }
@@ -0,0 +1,219 @@
+package com.cqh.android.media;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按源站统计网络带宽和首字节时间，请求线程、预缓存线程和分段下载线程从源站读取的数据都记录在这里
+ * 读取的数据积累到SAMPLE_BYTES算一个样本，每个源站保留指数加权平均和最近WINDOW_SIZE个样本的平均，
+ * 前者反应快，后者更平稳；首字节时间为发出请求到收到响应头的时间，也按指数加权平均
+ * 播放器、预缓存和缓冲区大小的调整都可以按这里的估计决定，还没有测量结果时返回-1
+ */
+public class MediaBandwidthEstimator {
+	/** 读取多少数据算一个带宽样本，太小的样本受调度影响大 */
+	static final int SAMPLE_BYTES = 64 * 1024;
+	/** 滑动窗口保留最近多少个样本 */
+	static final int WINDOW_SIZE = 16;
+	/** 新样本所占的权重 */
+	static final double EWMA_WEIGHT = 0.3;
+	/** 最多记录多少个源站，超过时丢弃最久没用的 */
+	static final int MAX_HOSTS = 16;
+
+	// 源站一一对应统计，最近更新或查询的排在最后
+	private static LinkedHashMap<String, HostStats> mHostStats = new LinkedHashMap<String, HostStats>(MAX_HOSTS, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, HostStats> eldest) {
+			return size() > MAX_HOSTS;
+		}
+	};
+	// 所有源站合在一起的统计，用于不区分源站的调整
+	private static HostStats mTotalStats = new HostStats(null);
+
+	/**
+	 * 记录一次从源站读取的数据，只计读取耗时，不含写给播放器和写入缓存的时间，读取长度多小都可以
+	 */
+	static synchronized void onNetworkRead(URL url, long bytes, long nanos) {
+		if (bytes <= 0 || nanos <= 0) {
+			return;
+		}
+		getHostStats(url.getHost()).addRead(bytes, nanos);
+		mTotalStats.addRead(bytes, nanos);
+	}
+
+	/**
+	 * 记录一次请求的首字节时间
+	 *
+	 * @param nanos 从发出请求到收到响应头的时间
+	 */
+	static synchronized void onFirstByte(URL url, long nanos) {
+		if (nanos <= 0) {
+			return;
+		}
+		getHostStats(url.getHost()).addFirstByte(nanos);
+		mTotalStats.addFirstByte(nanos);
+	}
+
+	/**
+	 * @return 该源站的带宽，字节/秒，还没有测量结果时返回-1
+	 */
+	public static synchronized long getBandwidth(String host) {
+		HostStats stats = mHostStats.get(host);
+		return stats == null ? -1 : stats.getBandwidth();
+	}
+
+	/**
+	 * @return 所有源站合在一起的带宽，字节/秒，还没有测量结果时返回-1
+	 */
+	public static synchronized long getBandwidth() {
+		return mTotalStats.getBandwidth();
+	}
+
+	/**
+	 * @return 该源站的首字节时间，毫秒，还没有测量结果时返回-1
+	 */
+	public static synchronized long getTimeToFirstByte(String host) {
+		HostStats stats = mHostStats.get(host);
+		return stats == null ? -1 : stats.getTimeToFirstByte();
+	}
+
+	/**
+	 * @return 所有源站合在一起的首字节时间，毫秒，还没有测量结果时返回-1
+	 */
+	public static synchronized long getTimeToFirstByte() {
+		return mTotalStats.getTimeToFirstByte();
+	}
+
+	/**
+	 * @return 该源站的完整估计，没有记录时返回null
+	 */
+	public static synchronized Estimate getEstimate(String host) {
+		HostStats stats = mHostStats.get(host);
+		return stats == null ? null : stats.toEstimate();
+	}
+
+	/**
+	 * @return 所有源站合在一起的完整估计
+	 */
+	public static synchronized Estimate getEstimate() {
+		return mTotalStats.toEstimate();
+	}
+
+	/**
+	 * 清除所有记录，网络切换（比如WiFi和移动网络之间）后原来的估计不再适用时调用
+	 */
+	public static synchronized void reset() {
+		mHostStats.clear();
+		mTotalStats = new HostStats(null);
+	}
+
+	private static HostStats getHostStats(String host) {
+		HostStats stats = mHostStats.get(host);
+		if (stats == null) {
+			stats = new HostStats(host);
+			mHostStats.put(host, stats);
+		}
+		return stats;
+	}
+
+	private static class HostStats {
+		private final String mHost;
+		// 还没凑够一个样本的读取
+		private long mPendingBytes;
+		private long mPendingNanos;
+		// 带宽，字节/毫秒，0表示还没有测量结果
+		private double mBandwidth;
+		// 最近的样本，循环覆盖
+		private final long[] mWindowBytes = new long[WINDOW_SIZE];
+		private final long[] mWindowNanos = new long[WINDOW_SIZE];
+		private int mWindowIndex;
+		// 首字节时间，毫秒，0表示还没有测量结果
+		private double mTimeToFirstByte;
+		private long mSampleCount;
+		private long mFirstByteCount;
+		private long mTotalBytes;
+		private long mUpdateTime;
+
+		HostStats(String host) {
+			mHost = host;
+		}
+
+		void addRead(long bytes, long nanos) {
+			mTotalBytes += bytes;
+			mPendingBytes += bytes;
+			mPendingNanos += nanos;
+			mUpdateTime = System.currentTimeMillis();
+			if (mPendingBytes < SAMPLE_BYTES) {
+				return;
+			}
+			double bandwidth = mPendingBytes * 1000000.0 / mPendingNanos;
+			mBandwidth = mBandwidth == 0 ? bandwidth : mBandwidth + EWMA_WEIGHT * (bandwidth - mBandwidth);
+			mWindowBytes[mWindowIndex] = mPendingBytes;
+			mWindowNanos[mWindowIndex] = mPendingNanos;
+			mWindowIndex = (mWindowIndex + 1) % WINDOW_SIZE;
+			mSampleCount++;
+			mPendingBytes = 0;
+			mPendingNanos = 0;
+		}
+
+		void addFirstByte(long nanos) {
+			double timeToFirstByte = nanos / 1000000.0;
+			mTimeToFirstByte = mTimeToFirstByte == 0 ? timeToFirstByte : mTimeToFirstByte + EWMA_WEIGHT * (timeToFirstByte - mTimeToFirstByte);
+			mFirstByteCount++;
+			mUpdateTime = System.currentTimeMillis();
+		}
+
+		long getBandwidth() {
+			return mBandwidth == 0 ? -1 : (long) (mBandwidth * 1000);
+		}
+
+		long getWindowBandwidth() {
+			long bytes = 0;
+			long nanos = 0;
+			for (int i = 0; i < WINDOW_SIZE; i++) {
+				bytes += mWindowBytes[i];
+				nanos += mWindowNanos[i];
+			}
+			return nanos == 0 ? -1 : (long) (bytes * 1000000000.0 / nanos);
+		}
+
+		long getTimeToFirstByte() {
+			return mTimeToFirstByte == 0 ? -1 : Math.max((long) mTimeToFirstByte, 1);
+		}
+
+		Estimate toEstimate() {
+			Estimate estimate = new Estimate();
+			estimate.host = mHost;
+			estimate.bandwidth = getBandwidth();
+			estimate.windowBandwidth = getWindowBandwidth();
+			estimate.timeToFirstByte = getTimeToFirstByte();
+			estimate.sampleCount = mSampleCount;
+			estimate.firstByteCount = mFirstByteCount;
+			estimate.totalBytes = mTotalBytes;
+			estimate.updateTime = mUpdateTime;
+			return estimate;
+		}
+	}
+
+	public static class Estimate {
+		/** 源站，所有源站合在一起时为null */
+		public String host;
+		/** 指数加权平均的带宽，字节/秒，-1表示还没有测量结果 */
+		public long bandwidth;
+		/** 最近WINDOW_SIZE个样本的平均带宽，字节/秒，-1表示还没有测量结果 */
+		public long windowBandwidth;
+		/** 首字节时间，毫秒，-1表示还没有测量结果 */
+		public long timeToFirstByte;
+		public long sampleCount;
+		public long firstByteCount;
+		public long totalBytes;
+		/** 最后一次更新的时间，System.currentTimeMillis() */
+		public long updateTime;
+
+		@Override
+		public String toString() {
+			return "源站: " + host + " 带宽: " + bandwidth + " 窗口带宽: " + windowBandwidth + " 首字节时间: " + timeToFirstByte
+					+ " 样本数: " + sampleCount + " 请求数: " + firstByteCount + " 总读取: " + totalBytes;
+		}
+	}
+}
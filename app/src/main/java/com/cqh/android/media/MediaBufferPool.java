@@ -0,0 +1,208 @@
+package com.cqh.android.media;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ * 请求线程和预缓存线程共用的读写缓冲区池，避免频繁seek、切歌时反复分配大数组
+ * 缓冲区按2的幂分级，借出的和池中空闲的缓冲区总量不超过上限，空间不够时先释放其他级别的空闲缓冲区，
+ * 仍不够时等待其他线程归还，等待超过ACQUIRE_TIMEOUT后不再等待，超出上限分配，归还时直接丢弃
+ */
+public class MediaBufferPool {
+	/** 缓冲区总量的默认上限 */
+	static final long DEFAULT_MAX_POOL_SIZE = 16 * 1024 * 1024;
+	/** 最小的缓冲区级别 */
+	static final int MIN_BUFFER_SIZE = 16 * 1024;
+	/** 等待其他线程归还缓冲区的最长时间 */
+	static final int ACQUIRE_TIMEOUT = 2 * 1000;
+
+	// 缓冲区长度一一对应该级别的空闲缓冲区
+	private static HashMap<Integer, LinkedList<byte[]>> mFreeBuffers = new HashMap<Integer, LinkedList<byte[]>>();
+	// 从池中借出还没归还的缓冲区，超出上限分配的不在其中
+	private static Set<byte[]> mInUseBuffers = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+	private static long mMaxPoolSize = DEFAULT_MAX_POOL_SIZE;
+	// 借出的缓冲区总量，不包括超出上限分配的
+	private static long mInUseBytes;
+	private static long mIdleBytes;
+	private static long mPeakInUseBytes;
+	private static long mAcquireCount;
+	private static long mReuseCount;
+	private static long mOverflowCount;
+	private static long mWaitCount;
+	private static long mTotalWaitMillis;
+	private static long mMaxWaitMillis;
+
+	/**
+	 * 设置缓冲区总量的上限，低内存设备可以调小
+	 */
+	public static synchronized void setMaxPoolSize(long maxPoolSize) {
+		mMaxPoolSize = maxPoolSize;
+		trimIdle(0);
+		MediaBufferPool.class.notifyAll();
+	}
+
+	/**
+	 * 借一个长度不小于length的缓冲区，用完必须调用release归还
+	 */
+	static byte[] acquire(int length) {
+		return acquire(length, ACQUIRE_TIMEOUT);
+	}
+
+	/**
+	 * 和acquire一样，但空间不够时不等待其他线程归还，立即超出上限分配，用于播放路径上不能停顿的地方
+	 */
+	static byte[] acquireNow(int length) {
+		return acquire(length, 0);
+	}
+
+	/**
+	 * @return 上限中还没借出的字节数，空闲缓冲区可以丢弃腾出空间，也算在内
+	 */
+	static synchronized long getAvailableBytes() {
+		return Math.max(mMaxPoolSize - mInUseBytes, 0);
+	}
+
+	private static synchronized byte[] acquire(int length, long timeout) {
+		int size = getBufferSize(length);
+		mAcquireCount++;
+		LinkedList<byte[]> freeBuffers = mFreeBuffers.get(size);
+		if (freeBuffers != null && !freeBuffers.isEmpty()) {
+			mIdleBytes -= size;
+			mReuseCount++;
+			return onAcquired(freeBuffers.removeFirst());
+		}
+		long waitStart = System.currentTimeMillis();
+		boolean waited = false;
+		while (mInUseBytes + size > mMaxPoolSize) {
+			long remain = timeout - (System.currentTimeMillis() - waitStart);
+			if (remain <= 0) {
+				break;
+			}
+			waited = true;
+			try {
+				MediaBufferPool.class.wait(remain);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			freeBuffers = mFreeBuffers.get(size);
+			if (freeBuffers != null && !freeBuffers.isEmpty()) {
+				mIdleBytes -= size;
+				mReuseCount++;
+				onWaited(waitStart);
+				return onAcquired(freeBuffers.removeFirst());
+			}
+		}
+		if (waited) {
+			onWaited(waitStart);
+		}
+		if (mInUseBytes + size > mMaxPoolSize) {
+			// 不计入池，归还时丢弃；只计数不打日志，由调用者通过getStats查看
+			mOverflowCount++;
+			return new byte[size];
+		}
+		// 为新的缓冲区腾出空间，丢弃其他级别的空闲缓冲区
+		trimIdle(size);
+		return onAcquired(new byte[size]);
+	}
+
+	/**
+	 * 归还acquire借出的缓冲区，buffer为null时什么都不做
+	 */
+	static synchronized void release(byte[] buffer) {
+		if (buffer == null) {
+			return;
+		}
+		if (!mInUseBuffers.remove(buffer)) {
+			return;
+		}
+		int size = buffer.length;
+		mInUseBytes -= size;
+		if (mInUseBytes + mIdleBytes + size <= mMaxPoolSize) {
+			LinkedList<byte[]> freeBuffers = mFreeBuffers.get(size);
+			if (freeBuffers == null) {
+				freeBuffers = new LinkedList<byte[]>();
+				mFreeBuffers.put(size, freeBuffers);
+			}
+			freeBuffers.addFirst(buffer);
+			mIdleBytes += size;
+		}
+		MediaBufferPool.class.notifyAll();
+	}
+
+	/**
+	 * @return 当前的使用情况，用于查看缓冲区是否够用、线程等待了多久
+	 */
+	public static synchronized Stats getStats() {
+		Stats stats = new Stats();
+		stats.maxPoolSize = mMaxPoolSize;
+		stats.inUseBytes = mInUseBytes;
+		stats.idleBytes = mIdleBytes;
+		stats.peakInUseBytes = mPeakInUseBytes;
+		stats.acquireCount = mAcquireCount;
+		stats.reuseCount = mReuseCount;
+		stats.overflowCount = mOverflowCount;
+		stats.waitCount = mWaitCount;
+		stats.totalWaitMillis = mTotalWaitMillis;
+		stats.maxWaitMillis = mMaxWaitMillis;
+		return stats;
+	}
+
+	/**
+	 * @return 不小于length的2的幂，最小为MIN_BUFFER_SIZE
+	 */
+	static int getBufferSize(int length) {
+		if (length <= MIN_BUFFER_SIZE) {
+			return MIN_BUFFER_SIZE;
+		}
+		return Integer.highestOneBit(length - 1) << 1;
+	}
+
+	private static byte[] onAcquired(byte[] buffer) {
+		mInUseBuffers.add(buffer);
+		mInUseBytes += buffer.length;
+		mPeakInUseBytes = Math.max(mPeakInUseBytes, mInUseBytes);
+		return buffer;
+	}
+
+	private static void onWaited(long waitStart) {
+		long waitMillis = System.currentTimeMillis() - waitStart;
+		mWaitCount++;
+		mTotalWaitMillis += waitMillis;
+		mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+	}
+
+	/**
+	 * 丢弃空闲缓冲区，直到再分配size字节后不超过上限
+	 */
+	private static void trimIdle(int size) {
+		for (LinkedList<byte[]> freeBuffers : mFreeBuffers.values()) {
+			while (mInUseBytes + mIdleBytes + size > mMaxPoolSize && !freeBuffers.isEmpty()) {
+				mIdleBytes -= freeBuffers.removeFirst().length;
+			}
+		}
+	}
+
+	public static class Stats {
+		public long maxPoolSize;
+		public long inUseBytes;
+		public long idleBytes;
+		public long peakInUseBytes;
+		public long acquireCount;
+		public long reuseCount;
+		public long overflowCount;
+		public long waitCount;
+		public long totalWaitMillis;
+		public long maxWaitMillis;
+
+		@Override
+		public String toString() {
+			return "上限: " + maxPoolSize + " 借出: " + inUseBytes + " 空闲: " + idleBytes + " 借出峰值: " + peakInUseBytes
+					+ " 借出次数: " + acquireCount + " 复用次数: " + reuseCount + " 超出上限: " + overflowCount
+					+ " 等待次数: " + waitCount + " 等待总时长: " + totalWaitMillis + " 最长等待: " + maxWaitMillis;
+		}
+	}
+}
@@ -0,0 +1,566 @@
+package com.cqh.android.media;
+
+/**
+ * 缓存文件的分块位图
+ * 资源按固定大小分块，完整缓存的块在位图中置位；只缓存了一部分的块（一般是某次写入的首尾两块）单独记录块内的区间，
+ * 同一块内可以有几段不相连的区间，精确到字节，已写入的数据不会因为不相连而被丢弃
+ * 某个位置是否有缓存、接下来可以连续读取的长度、需要从网络下载的长度，都只需要按字扫描位图，不需要解析字符串或遍历列表
+ */
+class MediaCacheBlockMap {
+	/** 二进制缓存控制信息的格式版本，写在第一个字节 */
+	static final byte ENCODING_VERSION = 1;
+
+	private final long mFileSize;
+	private final int mBlockSize;
+	private final int mBlockCount;
+	private final long[] mWords;
+
+	// 部分缓存的块内的缓存区间[start, end)，按块号、块内start升序排列，同一块内的区间不重叠也不相邻
+	private int[] mPartialBlocks = new int[4];
+	private int[] mPartialStarts = new int[4];
+	private int[] mPartialEnds = new int[4];
+	private int mPartialCount;
+
+	MediaCacheBlockMap(long fileSize, int blockSize) {
+		mFileSize = fileSize;
+		mBlockSize = blockSize;
+		mBlockCount = (int) ((fileSize + blockSize - 1) / blockSize);
+		mWords = new long[(mBlockCount + 63) >>> 6];
+	}
+
+	/**
+	 * 由 "start-end,start-end" 格式的缓存控制信息生成位图
+	 */
+	static MediaCacheBlockMap parse(String cacheParts, long fileSize, int blockSize) {
+		MediaCacheBlockMap map = new MediaCacheBlockMap(fileSize, blockSize);
+		if (cacheParts != null && cacheParts.length() > 0) {
+			int partStart = 0;
+			while (partStart < cacheParts.length()) {
+				int partEnd = cacheParts.indexOf(',', partStart);
+				if (partEnd == -1) {
+					partEnd = cacheParts.length();
+				}
+				int separator = cacheParts.indexOf('-', partStart);
+				map.add(Long.parseLong(cacheParts.substring(partStart, separator)),
+						Long.parseLong(cacheParts.substring(separator + 1, partEnd)));
+				partStart = partEnd + 1;
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * 不生成位图，直接由 "start-end,start-end" 格式的缓存控制信息算出已缓存的数据长度，各区间不重叠
+	 */
+	static long getCachedBytes(String cacheParts) {
+		long cachedBytes = 0;
+		if (cacheParts != null && cacheParts.length() > 0) {
+			int partStart = 0;
+			while (partStart < cacheParts.length()) {
+				int partEnd = cacheParts.indexOf(',', partStart);
+				if (partEnd == -1) {
+					partEnd = cacheParts.length();
+				}
+				int separator = cacheParts.indexOf('-', partStart);
+				cachedBytes += Long.parseLong(cacheParts.substring(separator + 1, partEnd))
+						- Long.parseLong(cacheParts.substring(partStart, separator)) + 1;
+				partStart = partEnd + 1;
+			}
+		}
+		return cachedBytes;
+	}
+
+	/**
+	 * 由encode()生成的二进制缓存控制信息生成位图
+	 */
+	static MediaCacheBlockMap decode(byte[] data, long fileSize, int blockSize) {
+		MediaCacheBlockMap map = new MediaCacheBlockMap(fileSize, blockSize);
+		if (data == null || data.length == 0 || data[0] != ENCODING_VERSION) {
+			return map;
+		}
+		long[] value = new long[1];
+		int offset = 1;
+		long prevEnd = 0;
+		while (offset < data.length) {
+			offset = readVarLong(data, offset, value);
+			long start = prevEnd + value[0];
+			offset = readVarLong(data, offset, value);
+			map.add(start, start + value[0]);
+			prevEnd = start + value[0] + 1;
+		}
+		return map;
+	}
+
+	/**
+	 * 不生成位图，直接由二进制缓存控制信息算出已缓存的数据长度
+	 */
+	static long getCachedBytes(byte[] data) {
+		if (data == null || data.length == 0 || data[0] != ENCODING_VERSION) {
+			return 0;
+		}
+		long cachedBytes = 0;
+		long[] value = new long[1];
+		int offset = 1;
+		while (offset < data.length) {
+			offset = readVarLong(data, offset, value);
+			offset = readVarLong(data, offset, value);
+			cachedBytes += value[0] + 1;
+		}
+		return cachedBytes;
+	}
+
+	/**
+	 * 把二进制缓存控制信息转成 "start-end,start-end" 格式，用于日志
+	 */
+	static String toString(byte[] data) {
+		StringBuilder sb = new StringBuilder();
+		if (data == null || data.length == 0 || data[0] != ENCODING_VERSION) {
+			return sb.toString();
+		}
+		long[] value = new long[1];
+		int offset = 1;
+		long prevEnd = 0;
+		while (offset < data.length) {
+			offset = readVarLong(data, offset, value);
+			long start = prevEnd + value[0];
+			offset = readVarLong(data, offset, value);
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(start).append('-').append(start + value[0]);
+			prevEnd = start + value[0] + 1;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 编码成二进制的缓存控制信息：版本号之后依次为每段缓存区间与上一段结尾之间的间隔、区间长度减一，都用变长整数表示
+	 * 先遍历一次算出长度，只分配输出的数组
+	 */
+	synchronized byte[] encode() {
+		int size = 1;
+		long prevEnd = 0;
+		long pos = getMissingLength(0);
+		while (pos < mFileSize) {
+			long length = getCachedLength(pos);
+			size += getVarLongSize(pos - prevEnd) + getVarLongSize(length - 1);
+			prevEnd = pos + length;
+			pos = prevEnd + getMissingLength(prevEnd);
+		}
+		byte[] data = new byte[size];
+		data[0] = ENCODING_VERSION;
+		int offset = 1;
+		prevEnd = 0;
+		pos = getMissingLength(0);
+		while (pos < mFileSize) {
+			long length = getCachedLength(pos);
+			offset = writeVarLong(data, offset, pos - prevEnd);
+			offset = writeVarLong(data, offset, length - 1);
+			prevEnd = pos + length;
+			pos = prevEnd + getMissingLength(prevEnd);
+		}
+		return data;
+	}
+
+	private static int getVarLongSize(long value) {
+		int size = 1;
+		while ((value >>>= 7) != 0) {
+			size++;
+		}
+		return size;
+	}
+
+	private static int writeVarLong(byte[] data, int offset, long value) {
+		while ((value & ~0x7FL) != 0) {
+			data[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * 从offset读取一个变长整数到value[0]
+	 *
+	 * @return 下一个变长整数的位置
+	 */
+	private static int readVarLong(byte[] data, int offset, long[] value) {
+		long result = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data[offset++];
+			result |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		value[0] = result;
+		return offset;
+	}
+
+	long getFileSize() {
+		return mFileSize;
+	}
+
+	int getBlockSize() {
+		return mBlockSize;
+	}
+
+	int getBlockCount() {
+		return mBlockCount;
+	}
+
+	long getBlockStart(int block) {
+		return (long) block * mBlockSize;
+	}
+
+	int getBlockLength(int block) {
+		return (int) Math.min(mBlockSize, mFileSize - getBlockStart(block));
+	}
+
+	synchronized boolean isBlockCached(int block) {
+		return (mWords[block >>> 6] & (1L << block)) != 0;
+	}
+
+	synchronized boolean isCached(long pos) {
+		if (pos < 0 || pos >= mFileSize) {
+			return false;
+		}
+		int block = (int) (pos / mBlockSize);
+		if (isBlockCached(block)) {
+			return true;
+		}
+		return findPartial(block, (int) (pos - getBlockStart(block))) >= 0;
+	}
+
+	/**
+	 * @return 从pos开始可以连续读取的缓存长度，pos没有缓存则返回0
+	 */
+	synchronized long getCachedLength(long pos) {
+		if (pos < 0 || pos >= mFileSize) {
+			return 0;
+		}
+		int block = (int) (pos / mBlockSize);
+		int offset = (int) (pos - getBlockStart(block));
+		long length;
+		if (isBlockCached(block)) {
+			length = getBlockLength(block) - offset;
+		} else {
+			int i = findPartial(block, offset);
+			if (i < 0) {
+				return 0;
+			}
+			length = mPartialEnds[i] - offset;
+			if (mPartialEnds[i] < getBlockLength(block)) {
+				return length;
+			}
+		}
+		if (block + 1 >= mBlockCount) {
+			return length;
+		}
+		int next = nextMissingBlock(block + 1);
+		length += Math.min(getBlockStart(next), mFileSize) - getBlockStart(block + 1);
+		if (next < mBlockCount) {
+			int i = firstPartial(next);
+			if (i < mPartialCount && mPartialBlocks[i] == next && mPartialStarts[i] == 0) {
+				length += mPartialEnds[i];
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @return 从pos开始到下一段缓存之间需要从网络下载的长度，pos有缓存则返回0
+	 */
+	synchronized long getMissingLength(long pos) {
+		if (pos < 0 || pos >= mFileSize) {
+			return 0;
+		}
+		int block = (int) (pos / mBlockSize);
+		if (isBlockCached(block)) {
+			return 0;
+		}
+		int offset = (int) (pos - getBlockStart(block));
+		int nextPartial = firstPartial(block);
+		for (; nextPartial < mPartialCount && mPartialBlocks[nextPartial] == block; nextPartial++) {
+			if (offset < mPartialStarts[nextPartial]) {
+				return mPartialStarts[nextPartial] - offset;
+			} else if (offset < mPartialEnds[nextPartial]) {
+				return 0;
+			}
+		}
+		long length = getBlockLength(block) - offset;
+		if (block + 1 >= mBlockCount) {
+			return length;
+		}
+		int nextFull = nextCachedBlock(block + 1);
+		if (nextPartial < mPartialCount && mPartialBlocks[nextPartial] < nextFull) {
+			return length + getBlockStart(mPartialBlocks[nextPartial]) - getBlockStart(block + 1) + mPartialStarts[nextPartial];
+		}
+		return length + Math.min(getBlockStart(nextFull), mFileSize) - getBlockStart(block + 1);
+	}
+
+	/**
+	 * @return from及之后第一个没有完整缓存的块，没有则返回块数
+	 */
+	synchronized int nextMissingBlock(int from) {
+		if (from >= mBlockCount) {
+			return mBlockCount;
+		}
+		int i = from >>> 6;
+		long word = ~mWords[i] & (-1L << from);
+		while (true) {
+			if (word != 0) {
+				return Math.min((i << 6) + Long.numberOfTrailingZeros(word), mBlockCount);
+			}
+			if (++i == mWords.length) {
+				return mBlockCount;
+			}
+			word = ~mWords[i];
+		}
+	}
+
+	/**
+	 * @return from及之后第一个完整缓存的块，没有则返回块数
+	 */
+	synchronized int nextCachedBlock(int from) {
+		if (from >= mBlockCount) {
+			return mBlockCount;
+		}
+		int i = from >>> 6;
+		long word = mWords[i] & (-1L << from);
+		while (true) {
+			if (word != 0) {
+				return (i << 6) + Long.numberOfTrailingZeros(word);
+			}
+			if (++i == mWords.length) {
+				return mBlockCount;
+			}
+			word = mWords[i];
+		}
+	}
+
+	/**
+	 * 标记start-end（包含end）的数据已缓存，与已有的缓存自然合并
+	 */
+	synchronized void add(long start, long end) {
+		if (start < 0) {
+			start = 0;
+		}
+		long endExclusive = Math.min(end + 1, mFileSize);
+		if (start >= endExclusive) {
+			return;
+		}
+		int firstBlock = (int) (start / mBlockSize);
+		int lastBlock = (int) ((endExclusive - 1) / mBlockSize);
+		if (firstBlock == lastBlock) {
+			addToBlock(firstBlock, (int) (start - getBlockStart(firstBlock)), (int) (endExclusive - getBlockStart(firstBlock)));
+			return;
+		}
+		addToBlock(firstBlock, (int) (start - getBlockStart(firstBlock)), getBlockLength(firstBlock));
+		setBlocks(firstBlock + 1, lastBlock);
+		addToBlock(lastBlock, 0, (int) (endExclusive - getBlockStart(lastBlock)));
+	}
+
+	/**
+	 * 清除整块的缓存标记，用于丢弃校验失败的块，之后该块需要重新下载
+	 */
+	synchronized void removeBlock(int block) {
+		if (block < 0 || block >= mBlockCount) {
+			return;
+		}
+		mWords[block >>> 6] &= ~(1L << block);
+		int i = firstPartial(block);
+		int j = i;
+		while (j < mPartialCount && mPartialBlocks[j] == block) {
+			j++;
+		}
+		if (j > i) {
+			removePartials(i, j);
+		}
+	}
+
+	/**
+	 * @return 已缓存的数据总长度
+	 */
+	synchronized long getCachedBytes() {
+		long cachedBytes = 0;
+		for (long word : mWords) {
+			cachedBytes += Long.bitCount(word);
+		}
+		cachedBytes *= mBlockSize;
+		if (mBlockCount > 0 && isBlockCached(mBlockCount - 1)) {
+			cachedBytes -= mBlockSize - getBlockLength(mBlockCount - 1);
+		}
+		for (int i = 0; i < mPartialCount; i++) {
+			cachedBytes += mPartialEnds[i] - mPartialStarts[i];
+		}
+		return cachedBytes;
+	}
+
+	/**
+	 * @return 按顺序排列的缓存区间，依次为start0, end0, start1, end1...（包含end）
+	 */
+	synchronized long[] getRanges() {
+		long[] ranges = new long[8];
+		int count = 0;
+		long pos = getMissingLength(0);
+		while (pos < mFileSize) {
+			long length = getCachedLength(pos);
+			if (count + 2 > ranges.length) {
+				long[] newRanges = new long[ranges.length * 2];
+				System.arraycopy(ranges, 0, newRanges, 0, count);
+				ranges = newRanges;
+			}
+			ranges[count++] = pos;
+			ranges[count++] = pos + length - 1;
+			pos += length;
+			pos += getMissingLength(pos);
+		}
+		long[] result = new long[count];
+		System.arraycopy(ranges, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * @return "start-end,start-end" 格式的缓存控制信息
+	 */
+	@Override
+	public synchronized String toString() {
+		long[] ranges = getRanges();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < ranges.length; i += 2) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(ranges[i]).append('-').append(ranges[i + 1]);
+		}
+		return sb.toString();
+	}
+
+	private void setBlock(int block) {
+		mWords[block >>> 6] |= 1L << block;
+	}
+
+	/**
+	 * 将[from, to)的块置位，并移除其中的部分缓存记录
+	 */
+	private void setBlocks(int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		int firstWord = from >>> 6;
+		int lastWord = (to - 1) >>> 6;
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+		if (firstWord == lastWord) {
+			mWords[firstWord] |= firstMask & lastMask;
+		} else {
+			mWords[firstWord] |= firstMask;
+			for (int i = firstWord + 1; i < lastWord; i++) {
+				mWords[i] = -1L;
+			}
+			mWords[lastWord] |= lastMask;
+		}
+		int i = firstPartial(from);
+		int j = i;
+		while (j < mPartialCount && mPartialBlocks[j] < to) {
+			j++;
+		}
+		if (j > i) {
+			removePartials(i, j);
+		}
+	}
+
+	/**
+	 * 标记块内[start, end)的数据已缓存，和块内重叠或相邻的区间合并，不相连的区间都保留
+	 */
+	private void addToBlock(int block, int start, int end) {
+		if (isBlockCached(block)) {
+			return;
+		}
+		// 块内结束在start之前的区间不受影响，之后和[start, end)重叠或相邻的区间合并成一段
+		int i = firstPartial(block);
+		while (i < mPartialCount && mPartialBlocks[i] == block && mPartialEnds[i] < start) {
+			i++;
+		}
+		int j = i;
+		while (j < mPartialCount && mPartialBlocks[j] == block && mPartialStarts[j] <= end) {
+			start = Math.min(start, mPartialStarts[j]);
+			end = Math.max(end, mPartialEnds[j]);
+			j++;
+		}
+		if (j > i) {
+			removePartials(i, j);
+		}
+		if (start == 0 && end == getBlockLength(block)) {
+			// 合并后覆盖整块，块内不会再有其他区间
+			setBlock(block);
+		} else {
+			insertPartial(i, block, start, end);
+		}
+	}
+
+	/**
+	 * @return 该块第一个部分缓存区间的下标，没有则为之后的块的第一个区间的下标
+	 */
+	private int firstPartial(int block) {
+		int low = 0;
+		int high = mPartialCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mPartialBlocks[mid] < block) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return 该块内包含offset的部分缓存区间的下标，没有则返回-1
+	 */
+	private int findPartial(int block, int offset) {
+		for (int i = firstPartial(block); i < mPartialCount && mPartialBlocks[i] == block; i++) {
+			if (offset < mPartialStarts[i]) {
+				break;
+			} else if (offset < mPartialEnds[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void insertPartial(int index, int block, int start, int end) {
+		if (mPartialCount == mPartialBlocks.length) {
+			int[] blocks = new int[mPartialCount * 2];
+			int[] starts = new int[mPartialCount * 2];
+			int[] ends = new int[mPartialCount * 2];
+			System.arraycopy(mPartialBlocks, 0, blocks, 0, mPartialCount);
+			System.arraycopy(mPartialStarts, 0, starts, 0, mPartialCount);
+			System.arraycopy(mPartialEnds, 0, ends, 0, mPartialCount);
+			mPartialBlocks = blocks;
+			mPartialStarts = starts;
+			mPartialEnds = ends;
+		}
+		int moveCount = mPartialCount - index;
+		System.arraycopy(mPartialBlocks, index, mPartialBlocks, index + 1, moveCount);
+		System.arraycopy(mPartialStarts, index, mPartialStarts, index + 1, moveCount);
+		System.arraycopy(mPartialEnds, index, mPartialEnds, index + 1, moveCount);
+		mPartialBlocks[index] = block;
+		mPartialStarts[index] = start;
+		mPartialEnds[index] = end;
+		mPartialCount++;
+	}
+
+	/**
+	 * 移除下标在[from, to)的部分缓存记录
+	 */
+	private void removePartials(int from, int to) {
+		int moveCount = mPartialCount - to;
+		System.arraycopy(mPartialBlocks, to, mPartialBlocks, from, moveCount);
+		System.arraycopy(mPartialStarts, to, mPartialStarts, from, moveCount);
+		System.arraycopy(mPartialEnds, to, mPartialEnds, from, moveCount);
+		mPartialCount -= to - from;
+	}
+}
@@ -0,0 +1,216 @@
+package com.cqh.android.media;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+
+/**
+ * 缓存文件每个完整块的CRC32校验值，保存在缓存文件旁边的校验文件里
+ * 校验文件开头4字节为块大小，之后每个块占4字节，0表示还没有校验值
+ * 每个块在本次运行中第一次被读取时校验一次，校验过的块记在内存里，之后不再校验
+ * 同时保持打开的校验文件不超过MAX_OPEN_FILES个，最久没用的先关闭，需要时再打开
+ */
+class MediaCacheChecksums {
+	private static final String TAG = MediaCacheChecksums.class.getSimpleName();
+
+	/** 同时保持打开的校验文件数 */
+	static final int MAX_OPEN_FILES = 4;
+
+	private static final int HEADER_LENGTH = 4;
+
+	// 缓存文件名一一对应校验信息，已校验的块记录在其中，本次运行中一直保留
+	private static HashMap<String, MediaCacheChecksums> mChecksums = new HashMap<String, MediaCacheChecksums>();
+	// 校验文件已打开的，最近使用的排在前面
+	private static LinkedList<MediaCacheChecksums> mOpenChecksums = new LinkedList<MediaCacheChecksums>();
+
+	private final File mFile;
+	private final int mBlockSize;
+	private RandomAccessFile mRaf;
+	private long[] mVerified = new long[0];
+	private volatile boolean mDeleted;
+
+	private MediaCacheChecksums(File file, int blockSize) {
+		mFile = file;
+		mBlockSize = blockSize;
+	}
+
+	/**
+	 * 获取缓存文件的校验信息，块大小和原来的不一致时原来的校验值全部作废
+	 */
+	static synchronized MediaCacheChecksums get(File cacheFile, int blockSize) {
+		MediaCacheChecksums checksums = mChecksums.get(cacheFile.getName());
+		if (checksums == null || checksums.mBlockSize != blockSize) {
+			if (checksums != null) {
+				checksums.delete();
+				mOpenChecksums.remove(checksums);
+			}
+			checksums = new MediaCacheChecksums(getChecksumFile(cacheFile), blockSize);
+			mChecksums.put(cacheFile.getName(), checksums);
+		}
+		return checksums;
+	}
+
+	/**
+	 * 删除缓存文件的所有校验值，缓存文件被删除或清空时调用
+	 */
+	static void delete(File cacheFile) {
+		MediaCacheChecksums checksums;
+		synchronized (MediaCacheChecksums.class) {
+			checksums = mChecksums.remove(cacheFile.getName());
+			if (checksums != null) {
+				mOpenChecksums.remove(checksums);
+			}
+		}
+		if (checksums != null) {
+			checksums.delete();
+		} else {
+			File checksumFile = getChecksumFile(cacheFile);
+			if (checksumFile.exists() && !checksumFile.delete()) {
+				Log.e(TAG, "删除校验文件失败 " + checksumFile.getName());
+			}
+		}
+	}
+
+	static File getChecksumFile(File cacheFile) {
+		return new File(cacheFile.getPath() + MediaCacheFile.CHECKSUM_FILE_SUFFIX);
+	}
+
+	static int compute(byte[] data, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return (int) crc.getValue();
+	}
+
+	synchronized boolean isVerified(int block) {
+		int i = block >>> 6;
+		return i < mVerified.length && (mVerified[i] & (1L << block)) != 0;
+	}
+
+	synchronized void setVerified(int block) {
+		int i = block >>> 6;
+		if (i >= mVerified.length) {
+			long[] verified = new long[Math.max(i + 1, mVerified.length * 2)];
+			System.arraycopy(mVerified, 0, verified, 0, mVerified.length);
+			mVerified = verified;
+		}
+		mVerified[i] |= 1L << block;
+	}
+
+	/**
+	 * @return 该块记录的校验值，没有记录时返回0
+	 */
+	int get(int block) {
+		int crc = 0;
+		synchronized (this) {
+			try {
+				RandomAccessFile raf = open();
+				long position = HEADER_LENGTH + (long) block * 4;
+				if (raf != null && position + 4 <= raf.length()) {
+					raf.seek(position);
+					crc = raf.readInt();
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "读取校验值失败 " + mFile.getName(), e);
+			}
+		}
+		closeLeastRecent(this);
+		return crc;
+	}
+
+	/**
+	 * 记录该块的校验值，刚写入的数据以此为准，视为已校验
+	 */
+	void put(int block, int crc) {
+		synchronized (this) {
+			try {
+				RandomAccessFile raf = open();
+				if (raf != null) {
+					raf.seek(HEADER_LENGTH + (long) block * 4);
+					raf.writeInt(crc);
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "写入校验值失败 " + mFile.getName(), e);
+			}
+			setVerified(block);
+		}
+		closeLeastRecent(this);
+	}
+
+	/**
+	 * 丢弃该块的校验值，块已从缓存位图中移除，重新下载后再记录
+	 */
+	void remove(int block) {
+		put(block, 0);
+		synchronized (this) {
+			int i = block >>> 6;
+			if (i < mVerified.length) {
+				mVerified[i] &= ~(1L << block);
+			}
+		}
+	}
+
+	/**
+	 * 打开校验文件，文件头记录的块大小不一致时清空
+	 *
+	 * @return 校验信息已被删除时返回null
+	 */
+	private RandomAccessFile open() throws IOException {
+		if (mRaf == null && !mDeleted) {
+			RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+			if (raf.length() < HEADER_LENGTH || raf.readInt() != mBlockSize) {
+				raf.setLength(0);
+				raf.seek(0);
+				raf.writeInt(mBlockSize);
+			}
+			mRaf = raf;
+		}
+		return mRaf;
+	}
+
+	private synchronized void close() {
+		if (mRaf != null) {
+			try {
+				mRaf.close();
+			} catch (IOException e) {
+				Log.e(TAG, "关闭校验文件失败 " + mFile.getName(), e);
+			}
+			mRaf = null;
+		}
+	}
+
+	private synchronized void delete() {
+		close();
+		mDeleted = true;
+		mVerified = new long[0];
+		if (mFile.exists() && !mFile.delete()) {
+			Log.e(TAG, "删除校验文件失败 " + mFile.getName());
+		}
+	}
+
+	/**
+	 * 把刚用过的校验文件排到最前面，关闭超出数量的最久没用的校验文件，在锁外关闭
+	 */
+	private static void closeLeastRecent(MediaCacheChecksums checksums) {
+		MediaCacheChecksums leastRecent = null;
+		synchronized (MediaCacheChecksums.class) {
+			if (checksums.mDeleted) {
+				return;
+			}
+			if (mOpenChecksums.peekFirst() != checksums) {
+				mOpenChecksums.remove(checksums);
+				mOpenChecksums.addFirst(checksums);
+				if (mOpenChecksums.size() > MAX_OPEN_FILES) {
+					leastRecent = mOpenChecksums.removeLast();
+				}
+			}
+		}
+		if (leastRecent != null) {
+			leastRecent.close();
+		}
+	}
+}
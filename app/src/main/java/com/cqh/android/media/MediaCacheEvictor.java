@@ -0,0 +1,118 @@
+package com.cqh.android.media;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 缓存目录的容量管理，缓存数据总量超过上限时，在后台按最近访问时间删除最久没访问的缓存文件和它的缓存控制信息
+ * 正在播放或预缓存的文件不会被删除
+ */
+class MediaCacheEvictor {
+	private static final String TAG = MediaCacheEvictor.class.getSimpleName();
+
+	/** 每次从数据库取多少个最久没访问的文件 */
+	static final int EVICT_PAGE_SIZE = 16;
+
+	private static ExecutorService mEvictExecutor = Executors.newSingleThreadExecutor();
+	private static long mMaxCacheSize = MediaCacheFile.DEFAULT_MAX_CACHE_SIZE;
+	private static boolean mTrimScheduled;
+	private static boolean mOrphanFilesDeleted;
+
+	static synchronized void setMaxCacheSize(long maxCacheSize) {
+		mMaxCacheSize = maxCacheSize;
+	}
+
+	static synchronized long getMaxCacheSize() {
+		return mMaxCacheSize;
+	}
+
+	/**
+	 * 在后台检查缓存数据总量，超过上限时删除最久没访问的缓存文件；已经在排队的检查不会重复执行
+	 */
+	static synchronized void trimAsync(Context context) {
+		if (mTrimScheduled) {
+			return;
+		}
+		mTrimScheduled = true;
+		final Context appContext = context.getApplicationContext();
+		mEvictExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (MediaCacheEvictor.class) {
+					mTrimScheduled = false;
+				}
+				trim(appContext, getMaxCacheSize());
+			}
+		});
+	}
+
+	/**
+	 * 删除最久没访问的缓存文件，直到缓存数据总量不超过maxCacheSize
+	 * 缓存数据总量和最久没访问的文件都由数据库的索引得出，不需要扫描整个表或缓存目录
+	 *
+	 * @return 删除的缓存数据长度
+	 */
+	static long trim(Context context, long maxCacheSize) {
+		if (!mOrphanFilesDeleted) {
+			deleteOrphanFiles(context);
+			mOrphanFilesDeleted = true;
+		}
+		long totalBytes = MediaCacheFileInfoDB.getTotalCachedBytes(context);
+		Log.d(TAG, "缓存数据总量 " + totalBytes + " 上限 " + maxCacheSize);
+		long evictedBytes = 0;
+		// 正在使用、没有删除的文件仍留在数据库里，下一页从它们之后开始取
+		int skipCount = 0;
+		while (totalBytes > maxCacheSize) {
+			ArrayList<MediaCacheFileInfoDB.MediaCacheFileInfo> cacheFileInfos = MediaCacheFileInfoDB.getOldestCacheFileInfos(context, skipCount, EVICT_PAGE_SIZE);
+			if (cacheFileInfos.isEmpty()) {
+				break;
+			}
+			for (int i = 0; i < cacheFileInfos.size() && totalBytes > maxCacheSize; i++) {
+				MediaCacheFileInfoDB.MediaCacheFileInfo info = cacheFileInfos.get(i);
+				long cachedBytes = MediaCacheFile.getCachedBytes(info);
+				if (MediaCacheFile.deleteIfUnused(context, info.fileName)) {
+					Log.d(TAG, "删除最久没访问的缓存文件 " + info.fileName + " 缓存数据长度 " + cachedBytes);
+					totalBytes -= cachedBytes;
+					evictedBytes += cachedBytes;
+				} else {
+					skipCount++;
+				}
+			}
+		}
+		MediaCacheSpaceMonitor.setUsedBytes(totalBytes);
+		return evictedBytes;
+	}
+
+	/**
+	 * 删除缓存目录里没有缓存控制信息的文件，这些文件已经无法使用；每次启动只需要检查一次
+	 */
+	private static void deleteOrphanFiles(Context context) {
+		ArrayList<File> files = FileUtils.getFilesSortByDate(MediaCacheFile.CACHE_FILE_PATH);
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			// 校验文件和迁移记录文件跟随它们的缓存文件
+			String fileName = getCacheFileName(file.getName());
+			// 不经过内存中的记录，确保删除前数据库里确实没有该文件
+			if (!MediaCacheFileInfoDB.isExistInDB(context, fileName) && MediaCacheFilePool.deleteIfUnused(file)) {
+				Log.d(TAG, "删除没有缓存控制信息的文件 " + file.getName());
+			}
+		}
+	}
+
+	private static String getCacheFileName(String fileName) {
+		if (fileName.endsWith(MediaCacheFile.CHECKSUM_FILE_SUFFIX)) {
+			return fileName.substring(0, fileName.length() - MediaCacheFile.CHECKSUM_FILE_SUFFIX.length());
+		}
+		if (fileName.endsWith(MediaCacheFile.MIGRATION_FILE_SUFFIX)) {
+			return fileName.substring(0, fileName.length() - MediaCacheFile.MIGRATION_FILE_SUFFIX.length());
+		}
+		return fileName;
+	}
+}
@@ -6,15 +6,22 @@ import android.os.Environment;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.channels.OverlappingFileLockException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 public class MediaCacheFile {
@@ -22,9 +29,26 @@ public class MediaCacheFile {
 
 	private Context mContext;
 	private File mFile;
+	// open()后持有的缓存文件句柄，close()前同一个文件的读写都不需要重新打开文件
+	private MediaCacheFilePool.Handle mHandle;
 
-	// 文件名一一对应锁，确保同时只有一个线程对同一个文件进行读写
-	private static HashMap<String, Object> mFileLocks = new HashMap<String, Object>();
+	// 文件名一一对应缓存位图，同一个文件的所有cacheFile共用，从数据库加载一次后以内存中的为准
+	private static HashMap<String, MediaCacheBlockMap> mBlockMaps = new HashMap<String, MediaCacheBlockMap>();
+	// 缓存位图有改动、还没写入数据库的文件
+	private static HashSet<String> mDirtyFileNames = new HashSet<String>();
+	// 本次运行中已经检查过、不需要恢复的文件
+	private static HashSet<String> mRecoveredFileNames = new HashSet<String>();
+	// 文件名一一对应启动时从日志重放出来的缓存区间，这些块没有校验值时不能直接信任
+	private static HashMap<String, MediaCacheBlockMap> mReplayedBlockMaps = new HashMap<String, MediaCacheBlockMap>();
+	// 缓存控制信息的改动先追加到日志，再由这个线程定时批量写入数据库，不阻塞读写缓存数据的线程
+	private static ScheduledExecutorService mFlushExecutor = Executors.newSingleThreadScheduledExecutor();
+	private static MediaCacheJournal mJournal;
+	private static boolean mFlushScheduled;
+	private static Context mFlushContext;
+	// 文件名一一对应内存映射窗口，最近使用的排在前面，超过MAX_MAPPED_FILES个时解除最久没用的映射
+	private static HashMap<String, MediaCacheMappedFile> mMappedFiles = new HashMap<String, MediaCacheMappedFile>();
+	private static LinkedList<MediaCacheMappedFile> mRecentMappedFiles = new LinkedList<MediaCacheMappedFile>();
+	private static boolean mMappedReadEnabled;
 
 	/** SD卡预留最小值 */
 	public static final int DIR_MIN_REMAIN_SIZE = 50 * 1024 * 1024;
@@ -32,6 +56,20 @@ public class MediaCacheFile {
 	public static final String CACHE_FILE_PATH = Environment.getExternalStorageDirectory().getPath() + "/" + "cqh/Cache/Media/";
 	/** 缓存文件后缀 */
 	public static final String CACHE_FILE_SUFFIX = ".cache";
+	/** 迁移紧凑存放的缓存文件时，记录迁移进度的文件后缀 */
+	public static final String MIGRATION_FILE_SUFFIX = ".migrating";
+	/** 缓存块校验值文件后缀 */
+	public static final String CHECKSUM_FILE_SUFFIX = ".crc";
+	/** 缓存分块的默认大小 */
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+	/** 缓存控制信息批量写入数据库的间隔 */
+	public static final int FLUSH_INTERVAL = 5 * 1000;
+	/** 缓存数据总量的默认上限 */
+	public static final long DEFAULT_MAX_CACHE_SIZE = 1024L * 1024 * 1024;
+	/** 同时保持内存映射的缓存文件数，一般是正在播放的和正在预缓存的 */
+	public static final int MAX_MAPPED_FILES = 2;
+
+	private static int mBlockSize = DEFAULT_BLOCK_SIZE;
 
 
 	public static boolean isCacheable(String urlString) {
@@ -45,7 +83,7 @@ public class MediaCacheFile {
 	}
 
 	public static boolean isCacheable(URL url) {
-		if (!FileUtils.isSdAvaliable(CACHE_FILE_PATH, DIR_MIN_REMAIN_SIZE)) {
+		if (!MediaCacheSpaceMonitor.isSpaceAvailable()) {
 			Log.e(TAG, "缓存目录不可用或可用空间不足");
 			return false;
 		}
@@ -78,6 +116,7 @@ public class MediaCacheFile {
 		if (!MediaCacheFileInfoDB.isExist(context, name)) {
 			return null;
 		}
+		MediaCacheFileInfoDB.recordAccess(context, name, System.currentTimeMillis());
 		MediaCacheFile cacheFile = new MediaCacheFile(context, name);
 		return cacheFile;
 	}
@@ -85,31 +124,137 @@ public class MediaCacheFile {
 	/**
 	 * 在数据库中插入或更新该文件的缓存控制信息，并返回cacheFile
 	 */
-	public static MediaCacheFile getInstance(Context context, URL url, int fileSize) {
+	public static MediaCacheFile getInstance(Context context, URL url, long fileSize) {
+		return getInstance(context, url, fileSize, null);
+	}
+
+	/**
+	 * 在数据库中插入或更新该文件的缓存控制信息，并返回cacheFile
+	 *
+	 * @param validator 响应头中的ETag或Last-Modified，和记录的不一致说明文件已变化，原来的缓存数据不再可用
+	 */
+	public static MediaCacheFile getInstance(Context context, URL url, long fileSize, String validator) {
 		String name = FileUtils.getValidFileName(url) + CACHE_FILE_SUFFIX;
-		MediaCacheFileInfoDB.insertOrUpdate(context, name, fileSize);
+		MediaCacheBlockMap blockMap = getBlockMap(context, name);
+		MediaCacheFileInfoDB.MediaCacheFileInfo info = MediaCacheFileInfoDB.getCacheFileInfo(context, name);
+		boolean validatorChanged = info != null && isValidatorChanged(info.validator, validator);
+		// 内存中有位图不代表数据库里有记录，比如重放日志时恢复了已被删除的文件，没有记录时之后的写入都会落空
+		if (blockMap == null || info == null || blockMap.getFileSize() != fileSize || validatorChanged) {
+			if (validatorChanged) {
+				Log.e(TAG, "文件已变化，原来的缓存数据不再可用 " + info.validator + " -> " + validator);
+			}
+			MediaCacheFileInfoDB.insertOrUpdate(context, name, fileSize);
+			resetBlockMap(context, name, fileSize);
+			// 新的缓存文件会占用更多空间，检查是否需要删除旧的缓存文件
+			MediaCacheEvictor.trimAsync(context);
+		}
+		info = MediaCacheFileInfoDB.getCacheFileInfo(context, name);
+		if (info != null && (!url.toString().equals(info.url) || (validator != null && !validator.equals(info.validator)))) {
+			MediaCacheFileInfoDB.updateOrigin(context, name, url.toString(), validator != null ? validator : info.validator);
+		}
+		MediaCacheFileInfoDB.recordAccess(context, name, System.currentTimeMillis());
 		MediaCacheFile cacheFile = new MediaCacheFile(context, name);
 		return cacheFile;
 	}
 
+	private static boolean isValidatorChanged(String oldValidator, String newValidator) {
+		return oldValidator != null && newValidator != null && !oldValidator.equals(newValidator);
+	}
+
+	/**
+	 * 用网络请求响应头中的校验信息确认缓存数据仍然可用，校验信息和记录的不一致或还没有记录时记下新的
+	 *
+	 * @param validator 响应头中的ETag或Last-Modified
+	 *
+	 * @return 和记录的校验信息不一致时返回false，说明文件已变化，调用者需初始化缓存
+	 */
+	public boolean checkValidator(String validator) {
+		MediaCacheFileInfoDB.MediaCacheFileInfo info = getCacheFileInfo();
+		if (info == null || validator == null || validator.equals(info.validator)) {
+			return true;
+		}
+		boolean changed = isValidatorChanged(info.validator, validator);
+		MediaCacheFileInfoDB.updateOrigin(mContext, mFile.getName(), info.url, validator);
+		return !changed;
+	}
+
+	/**
+	 * 设置缓存数据总量的上限，超过时在后台删除最久没访问的缓存文件
+	 */
+	public static void setMaxCacheSize(Context context, long maxCacheSize) {
+		MediaCacheEvictor.setMaxCacheSize(maxCacheSize);
+		MediaCacheEvictor.trimAsync(context);
+	}
+
+	/**
+	 * 开启后，读取缓存数据时通过同一文件共用的内存映射窗口读取，不需要每次打开文件、加锁
+	 * 适合完全缓存或大部分已缓存的文件反复seek的情况
+	 */
+	public static synchronized void setMappedReadEnabled(boolean enabled) {
+		mMappedReadEnabled = enabled;
+		if (!enabled) {
+			for (MediaCacheMappedFile mappedFile : mRecentMappedFiles) {
+				mappedFile.unmap();
+			}
+			mRecentMappedFiles.clear();
+		}
+	}
+
+	private synchronized static boolean isMappedReadEnabled() {
+		return mMappedReadEnabled;
+	}
+
+	/**
+	 * 设置缓存分块的大小，只对之后加载的缓存位图生效
+	 */
+	public static synchronized void setBlockSize(int blockSize) {
+		if (blockSize > 0) {
+			mBlockSize = blockSize;
+		}
+	}
+
 
 	public File getFile() {
 		return mFile;
 	}
 
-	public int getFileSize() {
-		MediaCacheFileInfoDB.MediaCacheFileInfo info = getCacheFileInfo();
-		if (info != null) {
-			return info.fileSize;
+	/**
+	 * 开始连续读写前调用，保持缓存文件打开直到调用close()，期间每次读写都复用同一个句柄
+	 */
+	public synchronized void open() {
+		if (mHandle != null) {
+			return;
+		}
+		try {
+			mHandle = MediaCacheFilePool.acquire(mFile);
+		} catch (IOException e) {
+			Log.e(TAG, "打开缓存文件失败", e);
+		}
+	}
+
+	/**
+	 * 结束读写后调用，没有其他线程在使用时立即关闭缓存文件
+	 */
+	public synchronized void close() {
+		if (mHandle != null) {
+			MediaCacheFilePool.release(mHandle, true);
+			mHandle = null;
+		}
+	}
+
+	public long getFileSize() {
+		MediaCacheBlockMap blockMap = getBlockMap();
+		if (blockMap != null) {
+			return blockMap.getFileSize();
 		} else {
 			return -1;
 		}
 	}
 
 	public String getCacheParts() {
-		MediaCacheFileInfoDB.MediaCacheFileInfo info = getCacheFileInfo();
-		if (info != null) {
-			return info.cacheParts;
+		MediaCacheBlockMap blockMap = getBlockMap();
+		if (blockMap != null) {
+			return blockMap.toString();
 		} else {
 			return null;
 		}
@@ -121,239 +266,726 @@ public class MediaCacheFile {
 
 
 
-	private synchronized static Object getFileLock(String fileName) {
-		Object fileLock = mFileLocks.get(fileName);;
-		if (fileLock == null) {
-			fileLock = new Object();
-			mFileLocks.put(fileName, fileLock);
+	private MediaCacheBlockMap getBlockMap() {
+		return getBlockMap(mContext, mFile.getName());
+	}
+
+	/**
+	 * 获取文件的缓存位图，第一次获取时从数据库的缓存控制信息加载
+	 *
+	 * @return 数据库中没有该文件的缓存控制信息时返回null
+	 */
+	private synchronized static MediaCacheBlockMap getBlockMap(Context context, String fileName) {
+		MediaCacheBlockMap blockMap = mBlockMaps.get(fileName);
+		if (blockMap == null) {
+			// 先重放日志，日志里可能有还没写入数据库的缓存区间
+			getJournal(context);
+			blockMap = mBlockMaps.get(fileName);
+			if (blockMap == null) {
+				blockMap = loadBlockMap(context, fileName);
+			}
+		}
+		return blockMap;
+	}
+
+	private synchronized static MediaCacheBlockMap loadBlockMap(Context context, String fileName) {
+		MediaCacheFileInfoDB.MediaCacheFileInfo info = MediaCacheFileInfoDB.getCacheFileInfo(context, fileName);
+		if (info == null || info.fileSize <= 0) {
+			return null;
 		}
-		return fileLock;
+		MediaCacheBlockMap blockMap = MediaCacheBlockMap.decode(info.cacheRanges, info.fileSize, mBlockSize);
+		mBlockMaps.put(fileName, blockMap);
+		return blockMap;
 	}
 
 	/**
-	 * 初始化文件长度，说明原来的缓存数据已经不可用，需先初始化缓存信息
+	 * 用指定文件长度的空位图替换文件原来的缓存位图
 	 */
-	public void initFileSize(int fileSize) {
-		initCacheParts();
-		MediaCacheFileInfoDB.insertOrUpdate(mContext, mFile.getName(), fileSize);
+	private synchronized static void resetBlockMap(Context context, String fileName, long fileSize) {
+		MediaCacheJournal journal = getJournal(context);
+		mBlockMaps.put(fileName, new MediaCacheBlockMap(fileSize, mBlockSize));
+		mReplayedBlockMaps.remove(fileName);
+		markDirty(context, fileName);
+		journal.appendReset(fileName, fileSize);
+		MediaCacheChecksums.delete(new File(CACHE_FILE_PATH + fileName));
 	}
 
 	/**
-	 * 如果缓存文件长度与缓存控制信息一致，则缓存数据可用
+	 * 用只包含ranges的位图替换文件原来的缓存位图，用于丢弃不可信的缓存区间
 	 *
-	 * @return true if cacheLengthByList == cacheLengthByFile, else false
+	 * @param ranges 依次为start0, end0, start1, end1...（包含end）
 	 */
-	public boolean isAvailable() {
-		return getCacheLengthByList(parseCacheParts(getCacheParts())) == mFile.length();
+	private synchronized static void replaceBlockMap(Context context, String fileName, long fileSize, long[] ranges) {
+		MediaCacheJournal journal = getJournal(context);
+		MediaCacheBlockMap blockMap = new MediaCacheBlockMap(fileSize, mBlockSize);
+		for (int i = 0; i < ranges.length; i += 2) {
+			blockMap.add(ranges[i], ranges[i + 1]);
+		}
+		mBlockMaps.put(fileName, blockMap);
+		markDirty(context, fileName);
+		journal.appendReset(fileName, fileSize);
+		for (int i = 0; i < ranges.length; i += 2) {
+			journal.appendAdd(fileName, ranges[i], ranges[i + 1]);
+		}
+		// 保留下来的块第一次读取时重新计算校验值
+		MediaCacheChecksums.delete(new File(CACHE_FILE_PATH + fileName));
 	}
 
-	public void initCacheParts() {
-		synchronized (getFileLock(mFile.getName())) {
-			RandomAccessFile raf = null;
-			try {
-				raf = new RandomAccessFile(mFile, "rw");
-				try {
-					raf.getChannel().lock();
-				} catch (OverlappingFileLockException e) {
-					// 锁上加锁可能导致该异常，不做处理
+	/**
+	 * 从缓存位图中移除校验失败的块，之后读取到该块时会单独重新下载
+	 */
+	private synchronized static void removeBlock(Context context, String fileName, MediaCacheBlockMap blockMap, int block) {
+		blockMap.removeBlock(block);
+		markDirty(context, fileName);
+		long blockStart = blockMap.getBlockStart(block);
+		getJournal(context).appendRemove(fileName, blockStart, blockStart + blockMap.getBlockLength(block) - 1);
+	}
+
+	private synchronized static boolean isRecovered(String fileName) {
+		return mRecoveredFileNames.contains(fileName);
+	}
+
+	private synchronized static void setRecovered(String fileName) {
+		mRecoveredFileNames.add(fileName);
+	}
+
+	private synchronized static void clearRecovered(String fileName) {
+		mRecoveredFileNames.remove(fileName);
+	}
+
+	private synchronized static void removeBlockMap(String fileName) {
+		mBlockMaps.remove(fileName);
+		mDirtyFileNames.remove(fileName);
+		mReplayedBlockMaps.remove(fileName);
+	}
+
+	/**
+	 * @return start-end（包含end）中有从日志重放出来的缓存区间
+	 */
+	private synchronized static boolean isReplayed(String fileName, long start, long end) {
+		MediaCacheBlockMap replayedBlockMap = mReplayedBlockMaps.get(fileName);
+		return replayedBlockMap != null && (replayedBlockMap.isCached(start) || start + replayedBlockMap.getMissingLength(start) <= end);
+	}
+
+	/**
+	 * 获取缓存控制信息的日志，第一次获取时重放上次没来得及写入数据库的记录
+	 */
+	private synchronized static MediaCacheJournal getJournal(final Context context) {
+		if (mJournal == null) {
+			mJournal = new MediaCacheJournal(new File(MediaCacheFileInfoDB.DB_PATH + MediaCacheJournal.JOURNAL_NAME));
+			mJournal.replay(new MediaCacheJournal.Visitor() {
+				@Override
+				public void onAdd(String fileName, long start, long end) {
+					MediaCacheBlockMap blockMap = mBlockMaps.get(fileName);
+					if (blockMap == null) {
+						blockMap = loadBlockMap(context, fileName);
+					}
+					if (blockMap != null) {
+						blockMap.add(start, end);
+						markDirty(context, fileName);
+						MediaCacheBlockMap replayedBlockMap = mReplayedBlockMaps.get(fileName);
+						if (replayedBlockMap == null) {
+							replayedBlockMap = new MediaCacheBlockMap(blockMap.getFileSize(), mBlockSize);
+							mReplayedBlockMaps.put(fileName, replayedBlockMap);
+						}
+						replayedBlockMap.add(start, end);
+					}
 				}
-				raf.setLength(0);
-				MediaCacheFileInfoDB.updateCacheParts(mContext, mFile.getName(), null);
-			} catch (IOException e) {
-				e.printStackTrace();
-			} finally {
-				if (raf != null){
-					try {
-						raf.close();
-					} catch (IOException e) {
-						Log.e(TAG, "raf.close() error 问号脸", e);
+
+				@Override
+				public void onReset(String fileName, long fileSize) {
+					if (!MediaCacheFileInfoDB.isExist(context, fileName)) {
+						// 写入这条记录后文件已被删除，不再恢复，之后的ADD记录也因为没有位图而忽略
+						mBlockMaps.remove(fileName);
+						mReplayedBlockMaps.remove(fileName);
+						return;
+					}
+					mBlockMaps.put(fileName, new MediaCacheBlockMap(fileSize, mBlockSize));
+					mReplayedBlockMaps.remove(fileName);
+					markDirty(context, fileName);
+				}
+
+				@Override
+				public void onRemove(String fileName, long start, long end) {
+					MediaCacheBlockMap blockMap = mBlockMaps.get(fileName);
+					if (blockMap == null) {
+						blockMap = loadBlockMap(context, fileName);
 					}
+					if (blockMap != null) {
+						int lastBlock = (int) (end / blockMap.getBlockSize());
+						for (int block = (int) (start / blockMap.getBlockSize()); block <= lastBlock; block++) {
+							blockMap.removeBlock(block);
+						}
+						markDirty(context, fileName);
+					}
+				}
+			});
+		}
+		return mJournal;
+	}
+
+	/**
+	 * 标记文件的缓存位图有改动，等待批量写入数据库
+	 * 必须在改动位图之后、追加日志之前调用，写入数据库时才能确定哪些日志记录已经写入
+	 */
+	private synchronized static void markDirty(Context context, String fileName) {
+		mDirtyFileNames.add(fileName);
+		mFlushContext = context.getApplicationContext();
+		if (!mFlushScheduled) {
+			mFlushScheduled = true;
+			mFlushExecutor.schedule(mFlushTask, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 立即把有改动的缓存控制信息批量写入数据库，切换播放源和释放播放器时调用
+	 */
+	public static void flushCacheParts() {
+		mFlushExecutor.execute(mFlushTask);
+	}
+
+	private static Runnable mFlushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	private static void flush() {
+		Context context;
+		long journalLength;
+		HashMap<String, byte[]> cacheRanges = new HashMap<String, byte[]>();
+		synchronized (MediaCacheFile.class) {
+			mFlushScheduled = false;
+			if (mDirtyFileNames.isEmpty()) {
+				return;
+			}
+			context = mFlushContext;
+			// 先记下日志长度再取位图，这之前的日志记录一定已经反映在取到的位图里
+			journalLength = mJournal.getLength();
+			for (String fileName : mDirtyFileNames) {
+				MediaCacheBlockMap blockMap = mBlockMaps.get(fileName);
+				if (blockMap != null) {
+					cacheRanges.put(fileName, blockMap.encode());
 				}
 			}
+			mDirtyFileNames.clear();
+		}
+		try {
+			MediaCacheFileInfoDB.updateCacheRanges(context, cacheRanges);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "缓存控制信息写入数据库失败，保留日志等下次写入", e);
+			for (String fileName : cacheRanges.keySet()) {
+				markDirty(context, fileName);
+			}
+			return;
 		}
+		mJournal.discardBefore(journalLength);
+		Log.d(TAG, "缓存控制信息批量写入数据库 " + cacheRanges.size() + "个文件");
 	}
 
-	public void delete() {
-		if (mFile.delete()) {
-			MediaCacheFileInfoDB.delete(mContext, mFile.getName());
+	private synchronized static MediaCacheMappedFile getMappedFile(File file) {
+		MediaCacheMappedFile mappedFile = mMappedFiles.get(file.getName());
+		if (mappedFile == null) {
+			mappedFile = new MediaCacheMappedFile(file);
+			mMappedFiles.put(file.getName(), mappedFile);
 		}
+		return mappedFile;
 	}
 
+	/**
+	 * 把刚读取过的映射排到最前面，返回需要解除映射的文件，在锁外解除，避免和正在读取的线程互相等待
+	 */
+	private synchronized static MediaCacheMappedFile touchMappedFile(MediaCacheMappedFile mappedFile) {
+		if (mRecentMappedFiles.peekFirst() != mappedFile) {
+			mRecentMappedFiles.remove(mappedFile);
+			mRecentMappedFiles.addFirst(mappedFile);
+			if (mRecentMappedFiles.size() > MAX_MAPPED_FILES) {
+				return mRecentMappedFiles.removeLast();
+			}
+		}
+		return null;
+	}
 
+	private synchronized static void removeMappedFile(String fileName) {
+		MediaCacheMappedFile mappedFile = mMappedFiles.remove(fileName);
+		if (mappedFile != null) {
+			mRecentMappedFiles.remove(mappedFile);
+		}
+	}
 
+	/**
+	 * 初始化文件长度，说明原来的缓存数据已经不可用，需先初始化缓存信息
+	 */
+	public void initFileSize(long fileSize) {
+		initCacheParts();
+		MediaCacheFileInfoDB.insertOrUpdate(mContext, mFile.getName(), fileSize);
+		resetBlockMap(mContext, mFile.getName(), fileSize);
+	}
 
 	/**
-	 * @param start 写入哪个位置开始的缓存数据
-	 * @param data 要写入的数据
+	 * 如果缓存文件长度与缓存控制信息一致，则缓存数据可用
+	 * 按偏移存放的缓存文件长度等于完整文件长度，旧的紧凑存放的缓存文件长度等于已缓存数据的总长度
 	 *
-	 * @return 如果插入成功，返回true，如果取消插入，返回false
+	 * @return true if fileLength == fileSize or cachedBytes == fileLength, else false
 	 */
-	public boolean insert(int start, byte[] data){
-		return insert(start, data, data.length);
+	public boolean isAvailable() {
+		MediaCacheBlockMap blockMap = getBlockMap();
+		if (blockMap == null) {
+			return false;
+		}
+		long fileLength = mFile.length();
+		return fileLength == blockMap.getFileSize() || blockMap.getCachedBytes() == fileLength;
+	}
+
+	public void initCacheParts() {
+		MediaCacheFileLock lock = MediaCacheFileLock.acquire(mFile.getName());
+		lock.lockExclusive();
+		MediaCacheFilePool.Handle handle = null;
+		try {
+			handle = MediaCacheFilePool.acquire(mFile);
+			clearCacheParts(handle.getFile());
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			releaseFile(handle, lock, true);
+		}
 	}
 
 	/**
-	 * @param start 插入哪个位置开始的缓存数据
-	 * @param data 要插入的数据，从0开始
-	 * @param length 要插入的数据长度
+	 * 缓存文件和缓存控制信息对不上时调用，继续被中断的迁移，保留仍然可信的缓存数据，不清空整个文件
+	 */
+	public void recover() {
+		MediaCacheFileLock lock = MediaCacheFileLock.acquire(mFile.getName());
+		lock.lockExclusive();
+		MediaCacheFilePool.Handle handle = null;
+		try {
+			handle = MediaCacheFilePool.acquire(mFile);
+			if (!prepareSparseFile(handle.getFile(), getBlockMap())) {
+				clearCacheParts(handle.getFile());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			releaseFile(handle, lock, true);
+		}
+	}
+
+	private void clearCacheParts(RandomAccessFile raf) throws IOException {
+		resize(raf, 0, 0);
+		File migrationFile = getMigrationFile();
+		if (migrationFile.exists() && !migrationFile.delete()) {
+			Log.e(TAG, "删除迁移记录失败 " + migrationFile.getName());
+		}
+		MediaCacheBlockMap blockMap = getBlockMap();
+		if (blockMap != null) {
+			resetBlockMap(mContext, mFile.getName(), blockMap.getFileSize());
+		}
+	}
+
+	/**
+	 * 持有共享锁时调用，确保缓存文件已按偏移存放；需要迁移、恢复或清空时临时升级为排他锁，返回时仍持有共享锁
 	 *
-	 * @return 如果插入成功，返回true，如果取消插入，返回false
+	 * @return 缓存文件可用返回true；没有缓存控制信息时已清空缓存文件，返回false
 	 */
-	public boolean insert(int start, byte[] data, int length){
-		synchronized (getFileLock(mFile.getName())) {
-			if (start < 0 || length <= 0)
-				return false;
-			RandomAccessFile raf = null;
-			try {
-				raf = new RandomAccessFile(mFile, "rw");
-				raf.getChannel().lock();
-				ArrayList<CachePart> cachePartList = parseCacheParts(getCacheParts());
-				int skip = updateCachePartList(cachePartList, start, start + length - 1);
-				if (skip == -1) {
-					// 可能是和预缓存后的状态冲突了，这里只处理这种情况，其他意料之外的情况作异常处理
-					if (start == 0 && cachePartList != null && cachePartList.size() > 0
-							&& cachePartList.get(0).start == 0
-							&& cachePartList.get(0).end < start + length - 1) {
-						start = cachePartList.get(0).end + 1;
-						data = Arrays.copyOfRange(data, start, length);
-						return insert(start, data, length - start);
-					}
-					Log.e(TAG, "INSERT 和控制信息匹配有问题，取消插入");
-					return false;
-				} else if (skip == -2) {
-					Log.e(TAG, "INSERT 缓存数据异常，初始化后重新插入");
-					initCacheParts();
-					return insert(start, data, length);
-				}
-				int totalMoveLength = (int) raf.length() - skip;
-				int alreadyMoveLength = 0;
-				final int TEMP_LENGTH = Math.min(totalMoveLength, 256 * 1024);
-				byte[] temp = new byte[TEMP_LENGTH];
-				raf.setLength(raf.length() + length);
-				while (totalMoveLength - alreadyMoveLength > 0) {
-					int tempLength = Math.min(totalMoveLength - alreadyMoveLength, TEMP_LENGTH);
-					raf.seek(raf.length() - length - alreadyMoveLength - tempLength);
-					raf.readFully(temp, 0, tempLength);
-					raf.seek(raf.length() - alreadyMoveLength - tempLength);
-					raf.write(temp, 0, tempLength);
-					alreadyMoveLength += tempLength;
-				}
-				raf.seek(skip);
-				raf.write(data, 0, length);
-				MediaCacheFileInfoDB.updateCacheParts(mContext, mFile.getName(), parseCachePartList(cachePartList));
-				Log.d(TAG, "√√√↓↓↓-- INSERT 缓存 length:" + length + "  " + start + "-" + (start + length - 1) + " --↓↓↓√√√");
-				Log.d(TAG, "缓存控制信息: " + getCacheParts() + "  " + getFileSize());
+	private boolean prepareSparseFile(RandomAccessFile raf, MediaCacheFileLock lock) throws IOException {
+		MediaCacheBlockMap blockMap = getBlockMap();
+		if (blockMap != null && raf.length() == blockMap.getFileSize() && isRecovered(mFile.getName())) {
+			return true;
+		}
+		lock.upgrade();
+		try {
+			if (prepareSparseFile(raf, getBlockMap())) {
 				return true;
-			} catch (IOException e) {
-				e.printStackTrace();
-				return false;
-			} finally {
-				if (raf != null){
-					try {
-						raf.close();
-					} catch (IOException e) {
-						Log.e(TAG, "raf.close() error 问号脸", e);
-					}
+			}
+			clearCacheParts(raf);
+			return false;
+		} finally {
+			lock.downgrade();
+		}
+	}
+
+	/**
+	 * 确保缓存文件按偏移存放：资源的第N个字节总是位于缓存文件的第N个字节，文件长度即完整文件长度（稀疏文件）
+	 * 旧的紧凑存放的缓存文件在这里迁移，上次迁移被中断的继续迁移；文件长度和缓存控制信息对不上时只丢弃对不上的部分
+	 * 缓存数据总是先写入文件并同步到存储，再记入缓存位图和日志，日志里的记录就是数据已落盘的标记，所以长度一致的稀疏文件可以直接信任
+	 *
+	 * @param raf 已持有排他锁的缓存文件
+	 * @param blockMap 缓存位图
+	 *
+	 * @return 没有缓存控制信息时返回false，否则返回true
+	 */
+	private boolean prepareSparseFile(RandomAccessFile raf, MediaCacheBlockMap blockMap) throws IOException {
+		// 检查完成前不能通过内存映射读取：迁移时文件已扩展到完整长度，但数据还没挪到真实的偏移上
+		clearRecovered(mFile.getName());
+		if (blockMap == null) {
+			return false;
+		}
+		File migrationFile = getMigrationFile();
+		if (migrationFile.exists()) {
+			resumeMigration(raf, blockMap, migrationFile);
+		} else {
+			long fileSize = blockMap.getFileSize();
+			long fileLength = raf.length();
+			if (fileLength != fileSize) {
+				if (blockMap.getCachedBytes() == fileLength) {
+					migratePackedFile(raf, blockMap.getRanges(), fileSize, fileSize, migrationFile);
+				} else {
+					salvage(raf, blockMap, fileLength);
 				}
 			}
 		}
+		// 迁移记录没能删除时下次再继续迁移，这之前都不算恢复完成
+		if (!migrationFile.exists()) {
+			setRecovered(mFile.getName());
+		}
+		return true;
+	}
+
+	/**
+	 * 缓存文件长度和缓存控制信息对不上时，保留仍然可信的部分
+	 * 比完整文件长的稀疏文件只截掉多出来的部分；比完整文件短的，只可能是旧的紧凑存放的文件在写入时被中断，
+	 * 只有从0开始的第一段在两种存放方式下位置相同，保留它在文件长度以内的部分，其余的丢弃
+	 */
+	private void salvage(RandomAccessFile raf, MediaCacheBlockMap blockMap, long fileLength) throws IOException {
+		long fileSize = blockMap.getFileSize();
+		if (fileLength > fileSize) {
+			Log.e(TAG, "缓存文件比完整文件长，截掉多出的部分 " + mFile.getName());
+			resize(raf, fileSize, fileSize);
+			return;
+		}
+		long[] ranges = blockMap.getRanges();
+		long[] keptRanges;
+		if (ranges.length > 0 && ranges[0] == 0 && fileLength > 0) {
+			keptRanges = new long[] { 0, Math.min(ranges[1], fileLength - 1) };
+		} else {
+			keptRanges = new long[0];
+		}
+		Log.e(TAG, "缓存文件长度与缓存控制信息不一致，保留可信的部分 " + mFile.getName() + " 缓存控制信息: " + blockMap
+				+ " 文件长度: " + fileLength + " 保留: " + (keptRanges.length > 0 ? keptRanges[0] + "-" + keptRanges[1] : "无"));
+		replaceBlockMap(mContext, mFile.getName(), fileSize, keptRanges);
+		resize(raf, keptRanges.length > 0 ? keptRanges[1] + 1 : 0, fileSize);
 	}
 
-	private static ArrayList<CachePart> parseCacheParts(String cacheParts) {
-		ArrayList<CachePart> cachePartList = new ArrayList<CachePart>();
-		if (!TextUtils.isEmpty(cacheParts)) {
-			String[] strs = cacheParts.split(",");
-			for (String str : strs) {
-				String[] ss = str.split("-");
-				cachePartList.add(new CachePart(Integer.valueOf(ss[0]), Integer.valueOf(ss[1])));
+	/**
+	 * 先截断到truncateLength，丢弃之后的数据，再扩展到length，整个过程中映射读取都被阻止
+	 * 文件长度的每次改变都要经过这里，否则正在读取的映射窗口可能超出文件长度
+	 */
+	private void resize(RandomAccessFile raf, long truncateLength, long length) throws IOException {
+		MediaCacheMappedFile mappedFile = getMappedFile(mFile);
+		mappedFile.lockForTruncate();
+		try {
+			raf.setLength(truncateLength);
+			if (length > truncateLength) {
+				raf.setLength(length);
 			}
+		} finally {
+			mappedFile.unlockForTruncate();
 		}
-		return cachePartList;
 	}
 
 	/**
-	 * 将list更新为假设给缓存文件插入range为start-end的数据后的cachePartList
-	 * @param list 要更新的list
-	 * @param start 要插入的缓存数据的起始位置
-	 * @param end 要插入的缓存数据的结束位置
+	 * 把紧凑存放的缓存数据从后往前挪到它真实的偏移上，每挪一段都在迁移记录文件里记下进度，中断后可以继续
+	 * 迁移记录文件里依次为已挪好的区间中最小的开始位置、正在挪的区间的开始位置（没有则为-1）
 	 *
-	 * @return 若缓存文件长度和缓存控制信息本身对不上，则需要初始化缓存信息，返回-2；
-	 * 若只是start-end与缓存控制信息冲突，则可能是预缓存的原因，需进一步处理，返回-1；
-	 * 若无任何问题，则返回在缓存文件中开始插入的位置
-	 */
-	private int updateCachePartList(ArrayList<CachePart> list, int start, int end) {
-		int cacheLengthByList = getCacheLengthByList(list);
-		if (cacheLengthByList != mFile.length()) {
-			Log.e(TAG, "缓存文件长度与缓存控制信息不一致");
-			return -2;
-		}
-		if (list.size() == 0) {
-			list.add(new CachePart(start, end));
-			return 0;
+	 * @param ranges 迁移开始时的缓存区间
+	 * @param boundary 开始位置不小于它的区间已经挪好
+	 */
+	private void migratePackedFile(RandomAccessFile raf, long[] ranges, long fileSize, long boundary, File migrationFile) throws IOException {
+		// 每一段在紧凑存放时的开始位置，只取决于它之前的区间的长度
+		long[] packedStarts = new long[ranges.length / 2];
+		long packedEnd = 0;
+		boolean needMove = false;
+		for (int i = 0; i < ranges.length; i += 2) {
+			packedStarts[i / 2] = packedEnd;
+			needMove |= ranges[i] < boundary && packedEnd != ranges[i];
+			packedEnd += ranges[i + 1] - ranges[i] + 1;
 		}
-		if (start >= 0 && end < list.get(0).start) {
-			if (end == list.get(0).start - 1) {
-				list.get(0).start = start;
-			} else {
-				list.add(0, new CachePart(start, end));
+		if (!needMove) {
+			// 没有缓存数据或者只有从0开始的一段，两种存放方式相同，只需要扩展文件长度
+			resize(raf, fileSize, fileSize);
+			if (migrationFile.exists() && !migrationFile.delete()) {
+				Log.e(TAG, "删除迁移记录失败 " + migrationFile.getName());
 			}
-			return 0;
+			return;
 		}
-		int cacheLength = 0;
-		for (int i=0; i<list.size()-1; i++) {
-			cacheLength += (list.get(i).end - list.get(i).start + 1);
-			if (start > list.get(i).end && end < list.get(i+1).start) {
-				if (start == list.get(i).end + 1 && end == list.get(i+1).start - 1) {
-					list.get(i).end = list.get(i+1).end;
-					list.remove(i+1);
-				} else if (start == list.get(i).end + 1) {
-					list.get(i).end = end;
-				} else if (end == list.get(i+1).start - 1) {
-					list.get(i+1).start = start;
-				} else {
-					list.add(i + 1, new CachePart(start, end));
+		writeMigrationProgress(migrationFile, boundary, -1);
+		resize(raf, fileSize, fileSize);
+		Log.d(TAG, "迁移紧凑存放的缓存文件 " + mFile.getName() + " 已挪好的位置: " + boundary);
+		FileChannel channel = raf.getChannel();
+		byte[] temp = null;
+		for (int i = ranges.length - 2; i >= 0; i -= 2) {
+			if (ranges[i] >= boundary) {
+				continue;
+			}
+			long partLength = ranges[i + 1] - ranges[i] + 1;
+			long packedStart = packedStarts[i / 2];
+			if (packedStart != ranges[i]) {
+				writeMigrationProgress(migrationFile, boundary, ranges[i]);
+				if (temp == null) {
+					temp = new byte[(int) Math.min(packedEnd, 256 * 1024)];
 				}
-				return cacheLength;
+				// 目标位置总在原位置之后，从尾部开始挪，避免覆盖还没挪走的数据
+				long alreadyMoveLength = 0;
+				while (partLength - alreadyMoveLength > 0) {
+					int tempLength = (int) Math.min(partLength - alreadyMoveLength, temp.length);
+					readFully(channel, temp, 0, tempLength, packedStart + partLength - alreadyMoveLength - tempLength);
+					writeFully(channel, temp, 0, tempLength, ranges[i + 1] + 1 - alreadyMoveLength - tempLength);
+					alreadyMoveLength += tempLength;
+				}
+				channel.force(false);
 			}
+			boundary = ranges[i];
+			writeMigrationProgress(migrationFile, boundary, -1);
 		}
-		if (start > list.get(list.size() - 1).end && end < getFileSize()) {
-			if (start == list.get(list.size() - 1).end + 1) {
-				list.get(list.size() - 1).end = end;
-			} else {
-				list.add(list.size(), new CachePart(start, end));
+		if (!migrationFile.delete()) {
+			Log.e(TAG, "删除迁移记录失败 " + migrationFile.getName());
+		}
+	}
+
+	/**
+	 * 继续上次被中断的迁移，正在挪的那一段可能只挪了一部分，丢弃它，其他还没挪的区间的数据都还在原位
+	 */
+	private void resumeMigration(RandomAccessFile raf, MediaCacheBlockMap blockMap, File migrationFile) throws IOException {
+		long boundary = blockMap.getFileSize();
+		long movingStart = -1;
+		RandomAccessFile progress = new RandomAccessFile(migrationFile, "r");
+		try {
+			if (progress.length() >= 16) {
+				boundary = progress.readLong();
+				movingStart = progress.readLong();
+			}
+		} finally {
+			progress.close();
+		}
+		long[] ranges = blockMap.getRanges();
+		Log.e(TAG, "继续上次被中断的迁移 " + mFile.getName() + " 已挪好的位置: " + boundary + " 中断的区间: " + movingStart);
+		if (movingStart != -1) {
+			// 先丢弃中断的区间再继续迁移，它之前的区间在紧凑存放时的位置不受影响
+			int count = 0;
+			for (int i = 0; i < ranges.length; i += 2) {
+				if (ranges[i] != movingStart) {
+					ranges[count++] = ranges[i];
+					ranges[count++] = ranges[i + 1];
+				}
 			}
-			return cacheLengthByList;
+			long[] keptRanges = new long[count];
+			System.arraycopy(ranges, 0, keptRanges, 0, count);
+			replaceBlockMap(mContext, mFile.getName(), blockMap.getFileSize(), keptRanges);
+			ranges = keptRanges;
+			boundary = movingStart;
+		}
+		migratePackedFile(raf, ranges, blockMap.getFileSize(), boundary, migrationFile);
+	}
+
+	private void writeMigrationProgress(File migrationFile, long boundary, long movingStart) throws IOException {
+		RandomAccessFile progress = new RandomAccessFile(migrationFile, "rw");
+		try {
+			progress.writeLong(boundary);
+			progress.writeLong(movingStart);
+			progress.getFD().sync();
+		} finally {
+			progress.close();
 		}
-		Log.e(TAG, "待插入的数据信息与缓存控制信息不匹配");
-		return -1;
 	}
 
-	private static int getCacheLengthByList(final ArrayList<CachePart> list) {
-		int cacheLength = 0;
-		if (list != null) {
-			for (CachePart part : list) {
-				cacheLength += (part.end - part.start + 1);
+	private File getMigrationFile() {
+		return new File(mFile.getPath() + MIGRATION_FILE_SUFFIX);
+	}
+
+	/**
+	 * 按位置从FileChannel读取，不改变共用句柄的读写位置
+	 */
+	private static void readFully(FileChannel channel, byte[] buffer, int offset, int length, long position) throws IOException {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+		while (byteBuffer.hasRemaining()) {
+			if (channel.read(byteBuffer, position + byteBuffer.position() - offset) < 0) {
+				throw new EOFException();
 			}
 		}
-		return cacheLength;
 	}
 
-	private static String parseCachePartList(ArrayList<CachePart> cachePartList) {
-		String cacheParts = "";
-		for (CachePart cachePart : cachePartList) {
-			cacheParts += (cachePart.start + "-" + cachePart.end + ",");
+	/**
+	 * 按位置写入FileChannel，不改变共用句柄的读写位置
+	 */
+	private static void writeFully(FileChannel channel, byte[] data, int offset, int length, long position) throws IOException {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(data, offset, length);
+		while (byteBuffer.hasRemaining()) {
+			channel.write(byteBuffer, position + byteBuffer.position() - offset);
+		}
+	}
+
+	private static void releaseFile(MediaCacheFilePool.Handle handle, MediaCacheFileLock lock, boolean exclusive) {
+		if (handle != null) {
+			MediaCacheFilePool.release(handle);
 		}
-		if (!TextUtils.isEmpty(cacheParts)) {
-			cacheParts = cacheParts.substring(0, cacheParts.length() - 1);
+		if (exclusive) {
+			lock.unlockExclusive();
+		} else {
+			lock.unlockShared();
+		}
+		MediaCacheFileLock.release(lock);
+	}
+
+	public void delete() {
+		if (mFile.delete()) {
+			MediaCacheFileInfoDB.delete(mContext, mFile.getName());
+			MediaCacheFilePool.remove(mFile.getName());
+			removeBlockMap(mFile.getName());
+			removeMappedFile(mFile.getName());
+			MediaCacheChecksums.delete(mFile);
 		}
-		return cacheParts;
 	}
 
+	/**
+	 * 没有线程在播放或预缓存该文件时，删除缓存文件和它的缓存控制信息
+	 *
+	 * @return 正在使用或删除失败时返回false
+	 */
+	static boolean deleteIfUnused(Context context, String fileName) {
+		// 正在使用的文件直接跳过，不排队等排他锁：播放器暂停时传输线程会一直持有共享锁，
+		// 排队的排他锁又会挡住之后所有的读取和插入，正在播放的文件就卡住了
+		if (MediaCacheFilePool.isInUse(fileName)) {
+			return false;
+		}
+		MediaCacheFileLock lock = MediaCacheFileLock.acquire(fileName);
+		if (!lock.tryLockExclusive()) {
+			MediaCacheFileLock.release(lock);
+			return false;
+		}
+		try {
+			if (!MediaCacheFilePool.deleteIfUnused(new File(CACHE_FILE_PATH + fileName))) {
+				return false;
+			}
+			MediaCacheFileInfoDB.delete(context, fileName);
+			removeBlockMap(fileName);
+			removeMappedFile(fileName);
+			MediaCacheChecksums.delete(new File(CACHE_FILE_PATH + fileName));
+			return true;
+		} finally {
+			lock.unlockExclusive();
+			MediaCacheFileLock.release(lock);
+		}
+	}
 
+	/**
+	 * @return 该文件已缓存的数据长度，优先以内存中的缓存位图为准
+	 */
+	static long getCachedBytes(MediaCacheFileInfoDB.MediaCacheFileInfo info) {
+		MediaCacheBlockMap blockMap;
+		synchronized (MediaCacheFile.class) {
+			blockMap = mBlockMaps.get(info.fileName);
+		}
+		if (blockMap == null) {
+			return info.cachedBytes;
+		}
+		return blockMap.getCachedBytes();
+	}
 
 
 
 
+	/**
+	 * @param start 写入哪个位置开始的缓存数据
+	 * @param data 要写入的数据
+	 *
+	 * @return 如果插入成功，返回true，如果取消插入，返回false
+	 */
+	public boolean insert(long start, byte[] data){
+		return insert(start, data, data.length);
+	}
+
+	/**
+	 * 和已有缓存重叠或相邻的部分自然合并，只写入还没缓存的子区间
+	 *
+	 * @param start 插入哪个位置开始的缓存数据
+	 * @param data 要插入的数据，从0开始
+	 * @param length 要插入的数据长度
+	 *
+	 * @return 如果插入成功，返回true，如果取消插入，返回false
+	 */
+	public boolean insert(long start, byte[] data, int length){
+		MediaCacheBlockMap blockMap = getBlockMap();
+		if (blockMap == null || start < 0 || length <= 0 || start + length > blockMap.getFileSize())
+			return false;
+		MediaCacheFileLock lock = MediaCacheFileLock.acquire(mFile.getName());
+		lock.lockShared();
+		MediaCacheFilePool.Handle handle = null;
+		final long writeStart = start;
+		final long writeEnd = start + length - 1;
+		boolean writing = false;
+		try {
+			handle = MediaCacheFilePool.acquire(mFile);
+			RandomAccessFile raf = handle.getFile();
+			if (!prepareSparseFile(raf, lock)) {
+				Log.e(TAG, "INSERT 缓存数据异常，初始化后重新插入");
+				if (!prepareSparseFile(raf, lock)) {
+					return false;
+				}
+			}
+			blockMap = getBlockMap();
+			// 只和写入区间重叠的插入互相等待，读取和其他区间的插入照常进行
+			lock.beginWrite(writeStart, writeEnd);
+			writing = true;
+			// 记下写入前已经完整的块，写完后只给新变完整的块计算校验值
+			int firstBlock = (int) (writeStart / blockMap.getBlockSize());
+			int lastBlock = (int) (writeEnd / blockMap.getBlockSize());
+			boolean[] cachedBlocks = new boolean[lastBlock - firstBlock + 1];
+			for (int block = firstBlock; block <= lastBlock; block++) {
+				cachedBlocks[block - firstBlock] = blockMap.isBlockCached(block);
+			}
+			// 和已有缓存重叠的部分跳过，只写入缺失的子区间，已经下载的数据不会被丢弃
+			FileChannel channel = raf.getChannel();
+			long end = start + length;
+			long pos = start;
+			int writeLength = 0;
+			// 写入的子区间，每两个元素为一个[start, end]
+			ArrayList<Long> parts = new ArrayList<Long>();
+			while (pos < end) {
+				long cachedLength = blockMap.getCachedLength(pos);
+				if (cachedLength > 0) {
+					pos += cachedLength;
+					continue;
+				}
+				int partLength = (int) Math.min(blockMap.getMissingLength(pos), end - pos);
+				// 按偏移存放，直接写到对应的位置，不需要移动已有的数据
+				writeFully(channel, data, (int) (pos - start), partLength, pos);
+				parts.add(pos);
+				parts.add(pos + partLength - 1);
+				writeLength += partLength;
+				pos += partLength;
+			}
+			if (writeLength > 0) {
+				// 这次写入的数据一起同步到存储后才记入缓存位图和日志，断电后日志和数据库里不会有还是空洞的区间
+				channel.force(false);
+			}
+			for (int i = 0; i < parts.size(); i += 2) {
+				long partStart = parts.get(i);
+				long partEnd = parts.get(i + 1);
+				blockMap.add(partStart, partEnd);
+				markDirty(mContext, mFile.getName());
+				getJournal(mContext).appendAdd(mFile.getName(), partStart, partEnd);
+				MediaCacheSpaceMonitor.onWrite(mContext, partEnd - partStart + 1);
+				Log.d(TAG, "√√√↓↓↓-- INSERT 缓存 length:" + (partEnd - partStart + 1) + "  " + partStart + "-" + partEnd + " --↓↓↓√√√");
+			}
+			if (writeLength < length) {
+				Log.d(TAG, "INSERT 和已有缓存重叠 " + (length - writeLength) + " 字节，已跳过");
+			}
+			updateChecksums(channel, blockMap, data, start, length, firstBlock, cachedBlocks);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (writing) {
+				lock.endWrite(writeStart, writeEnd);
+			}
+			releaseFile(handle, lock, false);
+		}
+	}
 
 	/**
 	 * @param buffer 存放读取的数据的数组
@@ -361,85 +993,248 @@ public class MediaCacheFile {
 	 *
 	 * @return 如果缓存数据异常取消读取并初始化，返回-1，否则返回读取的长度
 	 */
-	public int read(byte[] buffer, int start) {
-		synchronized (getFileLock(mFile.getName())) {
-			RandomAccessFile raf = null;
-			try {
-				raf = new RandomAccessFile(mFile, "rw");
-				raf.getChannel().lock();
-				int[] skipAndLength = getReadSkipAndLength(start, buffer.length);
-				if (skipAndLength == null) {
-					Log.e(TAG, "READ 缓存文件长度与缓存控制信息不一致，取消读取并初始化");
-					initCacheParts();
-					return -1;
-				} else if (skipAndLength.length != 2) {
-					Log.e(TAG, "READ 待读取的数据信息与缓存控制信息不匹配，取消读取");
-					return 0;
-				}
-				int skip = skipAndLength[0];
-				int length = skipAndLength[1];
-				raf.seek(skip);
-				raf.readFully(buffer, 0, length);
-				Log.d(TAG, "√√√↑↑↑-- READ 缓存 length:" + length + "  " + start + "-" + (start + length - 1) + " --↑↑↑√√√");
+	public int read(byte[] buffer, long start) {
+		verifyBlocks(start, buffer.length);
+		if (isMappedReadEnabled()) {
+			int length = readMapped(buffer, start);
+			if (length != -1) {
 				return length;
-			} catch (IOException e) {
-				e.printStackTrace();
+			}
+		}
+		MediaCacheFileLock lock = MediaCacheFileLock.acquire(mFile.getName());
+		lock.lockShared();
+		MediaCacheFilePool.Handle handle = null;
+		try {
+			handle = MediaCacheFilePool.acquire(mFile);
+			RandomAccessFile raf = handle.getFile();
+			if (!prepareSparseFile(raf, lock)) {
+				Log.e(TAG, "READ 缓存文件长度与缓存控制信息不一致，取消读取并初始化");
+				return -1;
+			}
+			// 缓存文件按偏移存放，读取位置就是start；持有共享锁期间已缓存的数据不会被清空
+			MediaCacheBlockMap blockMap = getBlockMap();
+			int length = (int) Math.min(blockMap.getCachedLength(start), buffer.length);
+			if (length <= 0) {
+				Log.e(TAG, "READ 待读取的数据信息与缓存控制信息不匹配，取消读取");
 				return 0;
-			} finally {
-				if (raf != null){
-					try {
-						raf.close();
-					} catch (IOException e) {
-						Log.e(TAG, "raf.close() error 问号脸", e);
-					}
-				}
 			}
+			readFully(raf.getChannel(), buffer, 0, length, start);
+			Log.d(TAG, "√√√↑↑↑-- READ 缓存 length:" + length + "  " + start + "-" + (start + length - 1) + " --↑↑↑√√√");
+			return length;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		} finally {
+			releaseFile(handle, lock, false);
 		}
 	}
 
+
+
+
 	/**
-	 * @param start 要读取的缓存数据的起始位置
-	 * @param maxLength 要读取的最大长度
+	 * 把缓存数据直接从缓存文件的FileChannel传输到target，不经过堆内存的缓冲区
+	 *
+	 * @param start 传输哪个位置开始的缓存数据
+	 * @param maxLength 最多传输的长度
+	 * @param target 一般是播放器请求的SocketChannel
 	 *
-	 * @return 若缓存文件长度和缓存控制信息本身对不上，则需要初始化缓存信息，返回null；
-	 * 若只是start、maxLength与缓存控制信息冲突，这属于未知的异常情况，一般取消读取即可，返回长度为0的int数组；
-	 * 若无任何问题，则返回存放了 在缓存文件中读取的开始位置和长度 的int数组
+	 * @return 如果缓存数据异常取消传输并初始化，返回-1，否则返回传输的长度
+	 * @throws IOException 写入target时出错，一般是播放器切换源或者seek了，连接被终止
 	 */
-	private int[] getReadSkipAndLength(int start, int maxLength) {
-		ArrayList<CachePart> list = parseCacheParts(getCacheParts());
-		if (getCacheLengthByList(list) != mFile.length()) {
-			return null;
+	public int transferTo(long start, int maxLength, WritableByteChannel target) throws IOException {
+		verifyBlocks(start, maxLength);
+		if (isMappedReadEnabled()) {
+			int length = transferMapped(start, maxLength, target);
+			if (length != -1) {
+				return length;
+			}
 		}
-		int cacheLength = 0;
-		int readSkip;
-		int readLength;
-		for (CachePart part : list) {
-			if (start >= part.start && start <= part.end) {
-				readSkip = cacheLength + start - part.start;
-				if (start + maxLength - 1 <= part.end) {
-					readLength = maxLength;
-				} else {
-					readLength = part.end - start + 1;
+		MediaCacheFileLock lock = MediaCacheFileLock.acquire(mFile.getName());
+		lock.lockShared();
+		MediaCacheFilePool.Handle handle = null;
+		try {
+			handle = MediaCacheFilePool.acquire(mFile);
+			RandomAccessFile raf = handle.getFile();
+			if (!prepareSparseFile(raf, lock)) {
+				Log.e(TAG, "TRANSFER 缓存文件长度与缓存控制信息不一致，取消传输并初始化");
+				return -1;
+			}
+			MediaCacheBlockMap blockMap = getBlockMap();
+			int length = (int) Math.min(blockMap.getCachedLength(start), maxLength);
+			if (length <= 0) {
+				Log.e(TAG, "TRANSFER 待传输的数据信息与缓存控制信息不匹配，取消传输");
+				return 0;
+			}
+			FileChannel channel = raf.getChannel();
+			int transferLength = 0;
+			while (transferLength < length) {
+				long count = channel.transferTo(start + transferLength, length - transferLength, target);
+				if (count <= 0) {
+					break;
 				}
-				return new int[]{readSkip, readLength};
+				transferLength += count;
 			}
-			cacheLength += (part.end - part.start + 1);
+			Log.d(TAG, "√√√↑↑↑-- TRANSFER 缓存 length:" + transferLength + "  " + start + "-" + (start + transferLength - 1) + " --↑↑↑√√√");
+			return transferLength;
+		} finally {
+			releaseFile(handle, lock, false);
 		}
-		return new int[0];
 	}
 
-	static class CachePart {
-		int start;
-		int end;
+	private MediaCacheChecksums getChecksums(MediaCacheBlockMap blockMap) {
+		return MediaCacheChecksums.get(mFile, blockMap.getBlockSize());
+	}
 
-		public CachePart(int start, int end) {
-			this.start = start;
-			this.end = end;
+	/**
+	 * 给插入后新变完整的块计算并记录校验值，整块都在插入的数据里的直接用插入的数据计算，否则从缓存文件读出整块
+	 *
+	 * @param cachedBlocks 插入前firstBlock开始的各块是否已经完整
+	 */
+	private void updateChecksums(FileChannel channel, MediaCacheBlockMap blockMap, byte[] data, long start, int length,
+			int firstBlock, boolean[] cachedBlocks) throws IOException {
+		MediaCacheChecksums checksums = getChecksums(blockMap);
+		byte[] temp = null;
+		for (int i = 0; i < cachedBlocks.length; i++) {
+			int block = firstBlock + i;
+			if (cachedBlocks[i] || !blockMap.isBlockCached(block)) {
+				continue;
+			}
+			long blockStart = blockMap.getBlockStart(block);
+			int blockLength = blockMap.getBlockLength(block);
+			int crc;
+			if (blockStart >= start && blockStart + blockLength <= start + length) {
+				crc = MediaCacheChecksums.compute(data, (int) (blockStart - start), blockLength);
+			} else {
+				if (temp == null) {
+					temp = new byte[blockMap.getBlockSize()];
+				}
+				readFully(channel, temp, 0, blockLength, blockStart);
+				crc = MediaCacheChecksums.compute(temp, 0, blockLength);
+			}
+			checksums.put(block, crc);
 		}
 	}
 
+	/**
+	 * 本次运行中第一次读取某个完整块前校验它的数据，校验失败的块从缓存位图中移除，读取在该块之前结束，之后单独重新下载该块
+	 * 要读取的块都已校验过时不打开文件也不加锁；没有校验值的块（比如升级前缓存的）以当前数据计算校验值，
+	 * 但从日志重放出来的块没有校验值时可能是断电前没落盘的空洞，同样丢弃后重新下载
+	 *
+	 * @param start 要读取的位置
+	 * @param maxLength 最多读取的长度
+	 */
+	private void verifyBlocks(long start, int maxLength) {
+		MediaCacheBlockMap blockMap = getBlockMap();
+		if (blockMap == null) {
+			return;
+		}
+		long length = Math.min(blockMap.getCachedLength(start), maxLength);
+		if (length <= 0) {
+			return;
+		}
+		MediaCacheChecksums checksums = getChecksums(blockMap);
+		int firstBlock = (int) (start / blockMap.getBlockSize());
+		int lastBlock = (int) ((start + length - 1) / blockMap.getBlockSize());
+		int block = firstBlock;
+		while (block <= lastBlock && (checksums.isVerified(block) || !blockMap.isBlockCached(block))) {
+			block++;
+		}
+		if (block > lastBlock) {
+			return;
+		}
+		MediaCacheFileLock lock = MediaCacheFileLock.acquire(mFile.getName());
+		lock.lockShared();
+		MediaCacheFilePool.Handle handle = null;
+		try {
+			handle = MediaCacheFilePool.acquire(mFile);
+			RandomAccessFile raf = handle.getFile();
+			if (!prepareSparseFile(raf, lock)) {
+				return;
+			}
+			blockMap = getBlockMap();
+			checksums = getChecksums(blockMap);
+			byte[] temp = new byte[blockMap.getBlockSize()];
+			for (; block <= lastBlock; block++) {
+				if (checksums.isVerified(block) || !blockMap.isBlockCached(block)) {
+					continue;
+				}
+				int blockLength = blockMap.getBlockLength(block);
+				readFully(raf.getChannel(), temp, 0, blockLength, blockMap.getBlockStart(block));
+				int crc = MediaCacheChecksums.compute(temp, 0, blockLength);
+				int expectedCrc = checksums.get(block);
+				long blockStart = blockMap.getBlockStart(block);
+				if (expectedCrc == crc || (expectedCrc == 0 && !isReplayed(mFile.getName(), blockStart, blockStart + blockLength - 1))) {
+					checksums.put(block, crc);
+				} else {
+					Log.e(TAG, "缓存块校验失败，丢弃后重新下载 " + mFile.getName() + " 块: " + block
+							+ " " + Integer.toHexString(expectedCrc) + " -> " + Integer.toHexString(crc));
+					removeBlock(mContext, mFile.getName(), blockMap, block);
+					checksums.remove(block);
+					// 之后的块不会在这次读取中用到
+					break;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			releaseFile(handle, lock, false);
+		}
+	}
 
+	/**
+	 * 通过内存映射窗口读取缓存数据，不打开文件也不加锁
+	 * 只读取本次运行中已经检查过、确认按偏移存放的文件，否则文件长度对了数据也可能还没迁移到真实的偏移上
+	 *
+	 * @return 无法通过内存映射读取时返回-1，由调用者改为加锁读取
+	 */
+	private int readMapped(byte[] buffer, long start) {
+		MediaCacheBlockMap blockMap = getBlockMap();
+		if (blockMap == null || !isRecovered(mFile.getName())) {
+			return -1;
+		}
+		int length = (int) Math.min(blockMap.getCachedLength(start), buffer.length);
+		if (length <= 0) {
+			return -1;
+		}
+		MediaCacheMappedFile mappedFile = getMappedFile(mFile);
+		length = mappedFile.read(start, buffer, length, blockMap.getFileSize());
+		if (length > 0) {
+			unmapLeastRecent(mappedFile);
+			Log.d(TAG, "√√√↑↑↑-- READ 映射 length:" + length + "  " + start + "-" + (start + length - 1) + " --↑↑↑√√√");
+		}
+		return length;
+	}
 
+	/**
+	 * 通过内存映射窗口把缓存数据写入target，不打开文件也不加锁，和readMapped一样只读取已经检查过的文件
+	 *
+	 * @return 无法通过内存映射读取时返回-1，由调用者改为加锁传输
+	 */
+	private int transferMapped(long start, int maxLength, WritableByteChannel target) throws IOException {
+		MediaCacheBlockMap blockMap = getBlockMap();
+		if (blockMap == null || !isRecovered(mFile.getName())) {
+			return -1;
+		}
+		int length = (int) Math.min(blockMap.getCachedLength(start), maxLength);
+		if (length <= 0) {
+			return -1;
+		}
+		MediaCacheMappedFile mappedFile = getMappedFile(mFile);
+		length = mappedFile.transferTo(start, length, blockMap.getFileSize(), target);
+		if (length > 0) {
+			unmapLeastRecent(mappedFile);
+			Log.d(TAG, "√√√↑↑↑-- TRANSFER 映射 length:" + length + "  " + start + "-" + (start + length - 1) + " --↑↑↑√√√");
+		}
+		return length;
+	}
+
+	private static void unmapLeastRecent(MediaCacheMappedFile mappedFile) {
+		MediaCacheMappedFile leastRecent = touchMappedFile(mappedFile);
+		if (leastRecent != null) {
+			leastRecent.unmap();
+		}
+	}
 
 	/**
 	 * 获得该位置接下来需要从网络下载的数据长度
@@ -448,16 +1243,27 @@ public class MediaCacheFile {
 	 *
 	 * @return 如果当前位置可以读取缓存，返回-1，否则返回需从网络下载的数据长度
 	 */
-	public int getNeedDownloadLength(int start) {
-		ArrayList<CachePart> list = parseCacheParts(getCacheParts());
-		for (CachePart part : list) {
-			if (start < part.start) {
-				return part.start - start;
-			} else if (start <= part.end) {
-				return -1;
-			}
+	public long getNeedDownloadLength(long start) {
+		MediaCacheBlockMap blockMap = getBlockMap();
+		if (blockMap == null) {
+			return 0;
+		}
+		long missingLength = blockMap.getMissingLength(start);
+		if (missingLength == 0 && start < blockMap.getFileSize()) {
+			return -1;
 		}
-		return getFileSize() - start;
+		return missingLength;
+	}
+
+	/**
+	 * @return 从start开始可以连续读取的缓存长度，没有缓存时返回0
+	 */
+	public long getCachedLength(long start) {
+		MediaCacheBlockMap blockMap = getBlockMap();
+		if (blockMap == null) {
+			return 0;
+		}
+		return blockMap.getCachedLength(start);
 	}
 
 	/**
@@ -469,14 +1275,12 @@ public class MediaCacheFile {
 	 */
 	public static float getBufferingProgress(Context context, String fileName, float playProgress) {
 		if (!TextUtils.isEmpty(fileName)) {
-			MediaCacheFileInfoDB.MediaCacheFileInfo cacheFileInfo = MediaCacheFileInfoDB.getCacheFileInfo(context, fileName + CACHE_FILE_SUFFIX);
-			if (cacheFileInfo != null) {
-				int start = (int) (playProgress * cacheFileInfo.fileSize);
-				ArrayList<CachePart> list = parseCacheParts(cacheFileInfo.cacheParts);
-				for (CachePart part : list) {
-					if (start >= part.start && start <= part.end) {
-						return (float) (part.end + 1) / cacheFileInfo.fileSize;
-					}
+			MediaCacheBlockMap blockMap = getBlockMap(context, fileName + CACHE_FILE_SUFFIX);
+			if (blockMap != null) {
+				long start = (long) (playProgress * blockMap.getFileSize());
+				long cachedLength = blockMap.getCachedLength(start);
+				if (cachedLength > 0) {
+					return (float) (start + cachedLength) / blockMap.getFileSize();
 				}
 			}
 		}
@@ -1,20 +1,23 @@
 package com.cqh.android.media;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
 import android.util.Log;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 
 public class MediaCacheFileInfoDB extends SQLiteOpenHelper {
 	private static final String TAG = MediaCacheFileInfoDB.class.getSimpleName();
 
-	static final int DB_VERSION = 1;
+	static final int DB_VERSION = 4;
 	static final String DB_PATH = Environment.getExternalStorageDirectory().getPath() + "/" + "cqh/Cache/DB/";
 	static final String DB_NAME = "CacheFileInfo.db";
 	static final String TABLE_NAME = "mediaCacheFileInfo";
@@ -22,25 +25,81 @@ public class MediaCacheFileInfoDB extends SQLiteOpenHelper {
 	static final String FIELD_FILE_SIZE = "fileSize";
 	static final String FIELD_CACHE_PARTS = "cacheParts";
 	static final String FIELD_DURATION = "duration";
+	static final String FIELD_LAST_ACCESS = "lastAccess";
+	static final String FIELD_HIT_COUNT = "hitCount";
+	static final String FIELD_CACHED_BYTES = "cachedBytes";
+	static final String FIELD_VALIDATOR = "validator";
+	static final String FIELD_URL = "url";
+	static final String FIELD_CACHE_RANGES = "cacheRanges";
+	// 按最近访问时间排序，同时覆盖已缓存长度，取最久没访问的N个文件和统计缓存总量都只需要扫描索引
+	static final String INDEX_LAST_ACCESS = TABLE_NAME + "_" + FIELD_LAST_ACCESS;
+
+	// 查询时只取这些列，按下标读取
+	private static final String[] COLUMNS = { FIELD_FILE_NAME, FIELD_FILE_SIZE, FIELD_CACHE_RANGES, FIELD_DURATION, FIELD_LAST_ACCESS,
+			FIELD_HIT_COUNT, FIELD_CACHED_BYTES, FIELD_VALIDATOR, FIELD_URL };
+	private static final int COLUMN_FILE_NAME = 0;
+	private static final int COLUMN_FILE_SIZE = 1;
+	private static final int COLUMN_CACHE_RANGES = 2;
+	private static final int COLUMN_DURATION = 3;
+	private static final int COLUMN_LAST_ACCESS = 4;
+	private static final int COLUMN_HIT_COUNT = 5;
+	private static final int COLUMN_CACHED_BYTES = 6;
+	private static final int COLUMN_VALIDATOR = 7;
+	private static final int COLUMN_URL = 8;
 
 	private static MediaCacheFileInfoDB mDB;
-	private static File mDBFile = new File(DB_PATH + DB_NAME);
+	private static SQLiteDatabase mDatabase;
+	// 文件名一一对应缓存控制信息，读过一次后不再查询数据库，写入时同时更新；值为null表示数据库中没有该文件
+	private static final HashMap<String, MediaCacheFileInfo> mInfoCache = new HashMap<String, MediaCacheFileInfo>();
+
+	// 预编译的写入语句，打开数据库时编译一次，之后只绑定参数执行；SQLiteStatement不是线程安全的，写入方法都是同步的
+	private static SQLiteStatement mInsertStatement;
+	private static SQLiteStatement mUpdateFileSizeStatement;
+	private static SQLiteStatement mUpdateCacheRangesStatement;
+	private static SQLiteStatement mUpdateLastAccessStatement;
+	private static SQLiteStatement mUpdateOriginStatement;
+	private static SQLiteStatement mTotalCachedBytesStatement;
+	private static SQLiteStatement mUpdateCacheFileInfoStatement;
+	private static SQLiteStatement mDeleteStatement;
 
 	private MediaCacheFileInfoDB(Context context) {
 		super(context, DB_PATH + DB_NAME, null, DB_VERSION);
 	}
 
+	/**
+	 * 数据库只打开一次，之后一直复用同一个连接和预编译的语句
+	 */
 	synchronized public static MediaCacheFileInfoDB getInstance(Context context) {
-		if (mDB == null || !mDBFile.exists()) {
-			if (mDB != null) {
-				mDB.close();
-			}
+		if (mDB == null) {
 			new File(DB_PATH).mkdirs();
 			mDB = new MediaCacheFileInfoDB(context.getApplicationContext());
+			mDatabase = mDB.getWritableDatabase();
+			// 预写日志模式下读取不会被写入阻塞，小事务提交也不需要每次重写回滚日志
+			if (!mDatabase.enableWriteAheadLogging()) {
+				Log.e(TAG, "数据库" + DB_NAME + "无法开启WAL");
+			}
+			mInsertStatement = mDatabase.compileStatement("INSERT OR IGNORE INTO " + TABLE_NAME + "("
+					+ FIELD_FILE_NAME + "," + FIELD_FILE_SIZE + "," + FIELD_LAST_ACCESS + ") VALUES (?,?,?)");
+			mUpdateFileSizeStatement = compileUpdate(FIELD_FILE_SIZE + "=?");
+			mUpdateCacheRangesStatement = compileUpdate(FIELD_CACHE_RANGES + "=?," + FIELD_CACHED_BYTES + "=?");
+			mUpdateLastAccessStatement = compileUpdate(FIELD_LAST_ACCESS + "=?," + FIELD_HIT_COUNT + "=" + FIELD_HIT_COUNT + "+1");
+			mUpdateOriginStatement = compileUpdate(FIELD_URL + "=?," + FIELD_VALIDATOR + "=?");
+			mUpdateCacheFileInfoStatement = compileUpdate(FIELD_CACHE_RANGES + "=?," + FIELD_CACHED_BYTES + "=?," + FIELD_FILE_SIZE + "=?");
+			mTotalCachedBytesStatement = mDatabase.compileStatement("SELECT IFNULL(SUM(" + FIELD_CACHED_BYTES + "),0) FROM " + TABLE_NAME);
+			mDeleteStatement = mDatabase.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " + FIELD_FILE_NAME + "=?");
 		}
 		return mDB;
 	}
 
+	private static SQLiteStatement compileUpdate(String set) {
+		return mDatabase.compileStatement("UPDATE " + TABLE_NAME + " SET " + set + " WHERE " + FIELD_FILE_NAME + "=?");
+	}
+
+	private static SQLiteDatabase getDatabase(Context context) {
+		getInstance(context);
+		return mDatabase;
+	}
+
 	// 当数据库首次创建时执行该方法，一般将创建表等初始化操作放在该方法中执行.
 	@Override
 	public void onCreate(SQLiteDatabase db) {
@@ -48,15 +107,66 @@ public class MediaCacheFileInfoDB extends SQLiteOpenHelper {
 		db.execSQL("CREATE TABLE " + TABLE_NAME + "("
 				+ FIELD_FILE_NAME +" STRING PRIMARY KEY,"
 				+ FIELD_FILE_SIZE + " INTEGER,"
-				+ FIELD_CACHE_PARTS + " STRING,"
-				+ FIELD_DURATION + " INTEGER)");
+				+ FIELD_CACHE_RANGES + " BLOB,"
+				+ FIELD_DURATION + " INTEGER,"
+				+ FIELD_LAST_ACCESS + " INTEGER DEFAULT 0,"
+				+ FIELD_HIT_COUNT + " INTEGER DEFAULT 0,"
+				+ FIELD_CACHED_BYTES + " INTEGER DEFAULT 0,"
+				+ FIELD_VALIDATOR + " STRING,"
+				+ FIELD_URL + " STRING)");
+		createIndexes(db);
+	}
+
+	private static void createIndexes(SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_LAST_ACCESS + " ON " + TABLE_NAME + "(" + FIELD_LAST_ACCESS + "," + FIELD_CACHED_BYTES + ")");
 	}
 
 	// 当打开数据库时传入的版本号比当前的版本号高时会调用该方法
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 		Log.d(TAG, "数据库" + DB_NAME + "从版本" + oldVersion + "升级到版本" + newVersion);
-		// TODO db.execSQL（change）
+		if (oldVersion < 2) {
+			// 版本2增加最近访问时间，旧的记录视为最久没访问过
+			db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + FIELD_LAST_ACCESS + " INTEGER DEFAULT 0");
+		}
+		if (oldVersion < 3) {
+			// 版本3增加访问次数、已缓存长度、校验信息和原始链接，并建立索引
+			db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + FIELD_HIT_COUNT + " INTEGER DEFAULT 0");
+			db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + FIELD_CACHED_BYTES + " INTEGER DEFAULT 0");
+			db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + FIELD_VALIDATOR + " STRING");
+			db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + FIELD_URL + " STRING");
+			createIndexes(db);
+			// 已有记录的已缓存长度由缓存控制信息算出
+			Cursor cursor = db.query(TABLE_NAME, new String[] { FIELD_FILE_NAME, FIELD_CACHE_PARTS }, null, null, null, null, null);
+			if (cursor != null) {
+				SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + FIELD_CACHED_BYTES + "=? WHERE " + FIELD_FILE_NAME + "=?");
+				while (cursor.moveToNext()) {
+					statement.bindLong(1, MediaCacheBlockMap.getCachedBytes(cursor.getString(1)));
+					statement.bindString(2, cursor.getString(0));
+					statement.executeUpdateDelete();
+				}
+				statement.close();
+				cursor.close();
+			}
+		}
+		if (oldVersion < 4) {
+			// 版本4把文本的缓存控制信息换成二进制编码，旧的文本列清空后不再使用
+			db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + FIELD_CACHE_RANGES + " BLOB");
+			Cursor cursor = db.query(TABLE_NAME, new String[] { FIELD_FILE_NAME, FIELD_FILE_SIZE, FIELD_CACHE_PARTS }, null, null, null, null, null);
+			if (cursor != null) {
+				SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + FIELD_CACHE_RANGES + "=?,"
+						+ FIELD_CACHE_PARTS + "=NULL WHERE " + FIELD_FILE_NAME + "=?");
+				while (cursor.moveToNext()) {
+					long fileSize = cursor.getLong(1);
+					byte[] cacheRanges = MediaCacheBlockMap.parse(cursor.getString(2), fileSize, MediaCacheFile.DEFAULT_BLOCK_SIZE).encode();
+					statement.bindBlob(1, cacheRanges);
+					statement.bindString(2, cursor.getString(0));
+					statement.executeUpdateDelete();
+				}
+				statement.close();
+				cursor.close();
+			}
+		}
 	}
 
 	// 当打开数据库时传入的版本号比当前的版本号低时会调用该方法
@@ -67,116 +177,285 @@ public class MediaCacheFileInfoDB extends SQLiteOpenHelper {
 	}
 
 	public static boolean isExist(Context context, String fileName) {
-		Cursor cursor = getInstance(context).getReadableDatabase().rawQuery("SELECT * FROM " + TABLE_NAME + " WHERE " + FIELD_FILE_NAME + "=?", new String[]{fileName});
-		boolean isExist = false;
-		if (cursor != null) {
-			if (cursor.moveToFirst()) {
-				isExist = true;
-			}
-			cursor.close();
+		return getCacheFileInfo(context, fileName) != null;
+	}
+
+	/**
+	 * 在一个事务里执行batch，期间调用的写入方法一起提交，适合一次更新多个文件的缓存控制信息
+	 */
+	synchronized public static void runInTransaction(Context context, Runnable batch) {
+		SQLiteDatabase sqLiteDatabase = getDatabase(context);
+		sqLiteDatabase.beginTransactionNonExclusive();
+		try {
+			batch.run();
+			sqLiteDatabase.setTransactionSuccessful();
+		} finally {
+			sqLiteDatabase.endTransaction();
 		}
-		return isExist;
 	}
 
-	public static void insertOrUpdate(Context context, String fileName, int fileSize) {
-		if (isExist(context, fileName)) {
+	/**
+	 * 先尝试插入，已存在时改为更新文件长度
+	 */
+	synchronized public static void insertOrUpdate(Context context, String fileName, long fileSize) {
+		if (!insert(context, fileName, fileSize)) {
 			updateFileSize(context, fileName, fileSize);
-		} else {
-			insert(context, fileName, fileSize);
 		}
 	}
 
-	public static void insert(Context context, String fileName, int fileSize) {
-		SQLiteDatabase sqLiteDatabase = getInstance(context).getWritableDatabase();
-		sqLiteDatabase.beginTransaction();
-		try {
-			ContentValues cv = new ContentValues();
-			cv.put(FIELD_FILE_NAME, fileName);
-			cv.put(FIELD_FILE_SIZE, fileSize);
-			sqLiteDatabase.insert(TABLE_NAME, null, cv);
-			sqLiteDatabase.setTransactionSuccessful();
-		} finally {
-			sqLiteDatabase.endTransaction();
+	/**
+	 * @return 已存在该文件的记录时不插入，返回false
+	 */
+	synchronized public static boolean insert(Context context, String fileName, long fileSize) {
+		getInstance(context);
+		long lastAccess = System.currentTimeMillis();
+		mInsertStatement.bindString(1, fileName);
+		mInsertStatement.bindLong(2, fileSize);
+		mInsertStatement.bindLong(3, lastAccess);
+		if (mInsertStatement.executeInsert() == -1) {
+			return false;
+		}
+		synchronized (mInfoCache) {
+			MediaCacheFileInfo cacheFileInfo = new MediaCacheFileInfo(fileName, fileSize, null, 0);
+			cacheFileInfo.lastAccess = lastAccess;
+			mInfoCache.put(fileName, cacheFileInfo);
 		}
+		return true;
 	}
 
-	public static void updateFileSize(Context context, String fileName, int fileSize) {
-		SQLiteDatabase sqLiteDatabase = getInstance(context).getWritableDatabase();
-		sqLiteDatabase.beginTransaction();
-		try {
-			ContentValues cv = new ContentValues();
-			cv.put(FIELD_FILE_SIZE, fileSize);
-			sqLiteDatabase.update(TABLE_NAME, cv, FIELD_FILE_NAME + "=?", new String[] { fileName });
-			sqLiteDatabase.setTransactionSuccessful();
-		} finally {
-			sqLiteDatabase.endTransaction();
+	synchronized public static void updateFileSize(Context context, String fileName, long fileSize) {
+		getInstance(context);
+		mUpdateFileSizeStatement.bindLong(1, fileSize);
+		mUpdateFileSizeStatement.bindString(2, fileName);
+		mUpdateFileSizeStatement.executeUpdateDelete();
+		synchronized (mInfoCache) {
+			MediaCacheFileInfo cacheFileInfo = mInfoCache.get(fileName);
+			if (cacheFileInfo != null) {
+				cacheFileInfo.fileSize = fileSize;
+			}
 		}
 	}
 
-	public static void updateCacheParts(Context context, String fileName, String cacheParts) {
-		SQLiteDatabase sqLiteDatabase = getInstance(context).getWritableDatabase();
-		sqLiteDatabase.beginTransaction();
-		try {
-			ContentValues cv = new ContentValues();
-			cv.put(FIELD_CACHE_PARTS, cacheParts);
-			sqLiteDatabase.update(TABLE_NAME, cv, FIELD_FILE_NAME + "=?", new String[] { fileName });
-			sqLiteDatabase.setTransactionSuccessful();
-		} finally {
-			sqLiteDatabase.endTransaction();
+	/**
+	 * @param cacheRanges MediaCacheBlockMap.encode()编码的缓存控制信息
+	 */
+	synchronized public static void updateCacheRanges(Context context, String fileName, byte[] cacheRanges) {
+		getInstance(context);
+		long cachedBytes = MediaCacheBlockMap.getCachedBytes(cacheRanges);
+		bindBlobOrNull(mUpdateCacheRangesStatement, 1, cacheRanges);
+		mUpdateCacheRangesStatement.bindLong(2, cachedBytes);
+		mUpdateCacheRangesStatement.bindString(3, fileName);
+		mUpdateCacheRangesStatement.executeUpdateDelete();
+		synchronized (mInfoCache) {
+			MediaCacheFileInfo cacheFileInfo = mInfoCache.get(fileName);
+			if (cacheFileInfo != null) {
+				cacheFileInfo.cacheRanges = cacheRanges;
+				cacheFileInfo.cachedBytes = cachedBytes;
+			}
 		}
 	}
 
-	public static void delete(Context context, String fileName) {
-		SQLiteDatabase sqLiteDatabase = getInstance(context).getWritableDatabase();
-		sqLiteDatabase.beginTransaction();
-		try {
-			sqLiteDatabase.delete(TABLE_NAME, FIELD_FILE_NAME + "=?", new String[] { fileName });
-			sqLiteDatabase.setTransactionSuccessful();
-		} finally {
-			sqLiteDatabase.endTransaction();
+	/**
+	 * 在一个事务里批量更新多个文件的缓存控制信息
+	 *
+	 * @param cacheRanges 文件名对应的缓存控制信息
+	 */
+	public static void updateCacheRanges(final Context context, final HashMap<String, byte[]> cacheRanges) {
+		runInTransaction(context, new Runnable() {
+			@Override
+			public void run() {
+				for (Map.Entry<String, byte[]> entry : cacheRanges.entrySet()) {
+					updateCacheRanges(context, entry.getKey(), entry.getValue());
+				}
+			}
+		});
+	}
+
+	/**
+	 * 记录一次访问，更新最近访问时间并累加访问次数
+	 */
+	synchronized public static void recordAccess(Context context, String fileName, long lastAccess) {
+		getInstance(context);
+		mUpdateLastAccessStatement.bindLong(1, lastAccess);
+		mUpdateLastAccessStatement.bindString(2, fileName);
+		mUpdateLastAccessStatement.executeUpdateDelete();
+		synchronized (mInfoCache) {
+			MediaCacheFileInfo cacheFileInfo = mInfoCache.get(fileName);
+			if (cacheFileInfo != null) {
+				cacheFileInfo.lastAccess = lastAccess;
+				cacheFileInfo.hitCount++;
+			}
+		}
+	}
+
+	/**
+	 * 记录文件的原始链接和校验信息，之后再请求时用校验信息判断文件是否变化
+	 */
+	synchronized public static void updateOrigin(Context context, String fileName, String url, String validator) {
+		getInstance(context);
+		bindStringOrNull(mUpdateOriginStatement, 1, url);
+		bindStringOrNull(mUpdateOriginStatement, 2, validator);
+		mUpdateOriginStatement.bindString(3, fileName);
+		mUpdateOriginStatement.executeUpdateDelete();
+		synchronized (mInfoCache) {
+			MediaCacheFileInfo cacheFileInfo = mInfoCache.get(fileName);
+			if (cacheFileInfo != null) {
+				cacheFileInfo.url = url;
+				cacheFileInfo.validator = validator;
+			}
+		}
+	}
+
+	synchronized public static void delete(Context context, String fileName) {
+		getInstance(context);
+		mDeleteStatement.bindString(1, fileName);
+		mDeleteStatement.executeUpdateDelete();
+		synchronized (mInfoCache) {
+			mInfoCache.put(fileName, null);
 		}
 	}
 
+	/**
+	 * 读过一次后直接返回内存中的记录，同一个文件始终返回同一个对象
+	 *
+	 * @return 数据库中没有该文件时返回null
+	 */
 	public static MediaCacheFileInfo getCacheFileInfo(Context context, String fileName) {
-		Cursor cursor = getInstance(context).getReadableDatabase().rawQuery("SELECT * FROM " + TABLE_NAME + " WHERE " + FIELD_FILE_NAME + "=?", new String[] { fileName });
+		synchronized (mInfoCache) {
+			if (mInfoCache.containsKey(fileName)) {
+				return mInfoCache.get(fileName);
+			}
+		}
+		MediaCacheFileInfo cacheFileInfo = queryCacheFileInfo(context, fileName);
+		synchronized (mInfoCache) {
+			// 查询期间可能已经有写入更新了内存中的记录，以内存中的为准
+			if (mInfoCache.containsKey(fileName)) {
+				return mInfoCache.get(fileName);
+			}
+			mInfoCache.put(fileName, cacheFileInfo);
+		}
+		return cacheFileInfo;
+	}
+
+	private static MediaCacheFileInfo queryCacheFileInfo(Context context, String fileName) {
+		Cursor cursor = getDatabase(context).query(TABLE_NAME, COLUMNS, FIELD_FILE_NAME + "=?", new String[] { fileName }, null, null, null);
 		MediaCacheFileInfo cacheFileInfo = null;
 		if (cursor != null) {
 			if (cursor.moveToFirst()) {
-				int fileSize = cursor.getInt(cursor.getColumnIndex(FIELD_FILE_SIZE));
-				String cacheParts = cursor.getString(cursor.getColumnIndex(FIELD_CACHE_PARTS));
-				int duration = cursor.getInt(cursor.getColumnIndex(FIELD_DURATION));
-				cacheFileInfo = new MediaCacheFileInfo(fileName, fileSize, cacheParts, duration);
+				cacheFileInfo = readCacheFileInfo(cursor);
 			}
 			cursor.close();
 		}
 		return cacheFileInfo;
 	}
 
-	public static void updateCacheFileInfo(Context context, String fileName, MediaCacheFileInfo cacheFileInfo) {
-		SQLiteDatabase sqLiteDatabase = getInstance(context).getWritableDatabase();
-		sqLiteDatabase.beginTransaction();
-		try {
-			ContentValues cv = new ContentValues();
-			cv.put(FIELD_CACHE_PARTS, cacheFileInfo.cacheParts);
-			cv.put(FIELD_FILE_SIZE, cacheFileInfo.fileSize);
-			sqLiteDatabase.update(TABLE_NAME, cv, FIELD_FILE_NAME + "=?", new String[] { fileName });
-			sqLiteDatabase.setTransactionSuccessful();
-		} finally {
-			sqLiteDatabase.endTransaction();
+	/**
+	 * 按最近访问时间从旧到新，获取跳过前offset个之后的最多limit个文件的缓存控制信息，走最近访问时间的索引
+	 */
+	public static ArrayList<MediaCacheFileInfo> getOldestCacheFileInfos(Context context, int offset, int limit) {
+		Cursor cursor = getDatabase(context).query(TABLE_NAME, COLUMNS, null, null, null, null,
+				FIELD_LAST_ACCESS + " ASC", offset + "," + limit);
+		ArrayList<MediaCacheFileInfo> cacheFileInfos = new ArrayList<MediaCacheFileInfo>();
+		if (cursor != null) {
+			while (cursor.moveToNext()) {
+				MediaCacheFileInfo cacheFileInfo;
+				synchronized (mInfoCache) {
+					cacheFileInfo = mInfoCache.get(cursor.getString(COLUMN_FILE_NAME));
+				}
+				if (cacheFileInfo == null) {
+					cacheFileInfo = readCacheFileInfo(cursor);
+				}
+				cacheFileInfos.add(cacheFileInfo);
+			}
+			cursor.close();
+		}
+		return cacheFileInfos;
+	}
+
+	/**
+	 * @return 数据库中记录的所有文件已缓存数据的总长度
+	 */
+	synchronized public static long getTotalCachedBytes(Context context) {
+		getInstance(context);
+		return mTotalCachedBytesStatement.simpleQueryForLong();
+	}
+
+	/**
+	 * @return 数据库中是否有该文件的记录，不经过内存中的记录，用来找出缓存目录里的无效文件
+	 */
+	public static boolean isExistInDB(Context context, String fileName) {
+		return queryCacheFileInfo(context, fileName) != null;
+	}
+
+	private static MediaCacheFileInfo readCacheFileInfo(Cursor cursor) {
+		MediaCacheFileInfo cacheFileInfo = new MediaCacheFileInfo(cursor.getString(COLUMN_FILE_NAME), cursor.getLong(COLUMN_FILE_SIZE),
+				cursor.getBlob(COLUMN_CACHE_RANGES), cursor.getInt(COLUMN_DURATION));
+		cacheFileInfo.lastAccess = cursor.getLong(COLUMN_LAST_ACCESS);
+		cacheFileInfo.hitCount = cursor.getInt(COLUMN_HIT_COUNT);
+		cacheFileInfo.cachedBytes = cursor.getLong(COLUMN_CACHED_BYTES);
+		cacheFileInfo.validator = cursor.getString(COLUMN_VALIDATOR);
+		cacheFileInfo.url = cursor.getString(COLUMN_URL);
+		return cacheFileInfo;
+	}
+
+	synchronized public static void updateCacheFileInfo(Context context, String fileName, MediaCacheFileInfo cacheFileInfo) {
+		getInstance(context);
+		long cachedBytes = MediaCacheBlockMap.getCachedBytes(cacheFileInfo.cacheRanges);
+		bindBlobOrNull(mUpdateCacheFileInfoStatement, 1, cacheFileInfo.cacheRanges);
+		mUpdateCacheFileInfoStatement.bindLong(2, cachedBytes);
+		mUpdateCacheFileInfoStatement.bindLong(3, cacheFileInfo.fileSize);
+		mUpdateCacheFileInfoStatement.bindString(4, fileName);
+		mUpdateCacheFileInfoStatement.executeUpdateDelete();
+		cacheFileInfo.cachedBytes = cachedBytes;
+		synchronized (mInfoCache) {
+			MediaCacheFileInfo cachedInfo = mInfoCache.get(fileName);
+			if (cachedInfo != null && cachedInfo != cacheFileInfo) {
+				cachedInfo.cacheRanges = cacheFileInfo.cacheRanges;
+				cachedInfo.cachedBytes = cachedBytes;
+				cachedInfo.fileSize = cacheFileInfo.fileSize;
+			}
+		}
+	}
+
+	private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindString(index, value);
+		}
+	}
+
+	private static void bindBlobOrNull(SQLiteStatement statement, int index, byte[] value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindBlob(index, value);
 		}
 	}
 
 	public static class MediaCacheFileInfo {
 		public String fileName;
-		public int fileSize;
-		public String cacheParts;
+		public long fileSize;
+		public byte[] cacheRanges;
 		public int duration;
+		public long lastAccess;
+		public int hitCount;
+		public long cachedBytes;
+		public String validator;
+		public String url;
 
-		public MediaCacheFileInfo(String fileName, int fileSize, String cacheParts, int duration) {
+		public MediaCacheFileInfo(String fileName, long fileSize, byte[] cacheRanges, int duration) {
 			this.fileName = fileName;
 			this.fileSize = fileSize;
-			this.cacheParts = cacheParts;
+			this.cacheRanges = cacheRanges;
 			this.duration = duration;
 		}
+
+		/**
+		 * @return "start-end,start-end" 格式的缓存控制信息
+		 */
+		public String getCacheParts() {
+			return MediaCacheBlockMap.toString(cacheRanges);
+		}
 	}
 }
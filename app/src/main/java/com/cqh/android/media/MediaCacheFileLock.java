@@ -0,0 +1,114 @@
+package com.cqh.android.media;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 缓存文件的读写锁，同一进程内对同一个缓存文件的访问都通过它协调
+ * 读取持有共享锁，互不阻塞；插入也只持有共享锁，另外登记要写入的区间，只和写入区间重叠的插入互相等待；
+ * 清空、迁移这类改变整个文件的操作持有排他锁
+ * 锁对象按引用计数管理，没有线程使用时从表中移除
+ */
+class MediaCacheFileLock {
+	private static HashMap<String, MediaCacheFileLock> mLocks = new HashMap<String, MediaCacheFileLock>();
+
+	private final String mName;
+	private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+	// 正在写入的区间，每两个元素为一个[start, end]
+	private final ArrayList<Long> mWritingRanges = new ArrayList<Long>();
+	private int mRefCount;
+
+	private MediaCacheFileLock(String name) {
+		mName = name;
+	}
+
+	/**
+	 * 获取文件名对应的锁对象，用完必须调用release
+	 */
+	static synchronized MediaCacheFileLock acquire(String fileName) {
+		MediaCacheFileLock lock = mLocks.get(fileName);
+		if (lock == null) {
+			lock = new MediaCacheFileLock(fileName);
+			mLocks.put(fileName, lock);
+		}
+		lock.mRefCount++;
+		return lock;
+	}
+
+	static synchronized void release(MediaCacheFileLock lock) {
+		if (--lock.mRefCount == 0) {
+			mLocks.remove(lock.mName);
+		}
+	}
+
+	void lockShared() {
+		mLock.readLock().lock();
+	}
+
+	void unlockShared() {
+		mLock.readLock().unlock();
+	}
+
+	void lockExclusive() {
+		mLock.writeLock().lock();
+	}
+
+	/**
+	 * 不等待地获取排他锁，有线程持有共享锁或排他锁时立即返回false，不会让之后的读写排在它后面
+	 */
+	boolean tryLockExclusive() {
+		return mLock.writeLock().tryLock();
+	}
+
+	void unlockExclusive() {
+		mLock.writeLock().unlock();
+	}
+
+	/**
+	 * 从共享锁升级为排他锁，期间其他线程可能已经改变了文件，调用者拿到排他锁后需要重新检查
+	 */
+	void upgrade() {
+		mLock.readLock().unlock();
+		mLock.writeLock().lock();
+	}
+
+	/**
+	 * 从排他锁降级为共享锁
+	 */
+	void downgrade() {
+		mLock.readLock().lock();
+		mLock.writeLock().unlock();
+	}
+
+	/**
+	 * 登记要写入的区间start-end（包含end），和正在写入的区间重叠时等待其写完，调用前需持有共享锁
+	 */
+	synchronized void beginWrite(long start, long end) throws InterruptedException {
+		while (isWriting(start, end)) {
+			wait();
+		}
+		mWritingRanges.add(start);
+		mWritingRanges.add(end);
+	}
+
+	synchronized void endWrite(long start, long end) {
+		for (int i = 0; i < mWritingRanges.size(); i += 2) {
+			if (mWritingRanges.get(i) == start && mWritingRanges.get(i + 1) == end) {
+				mWritingRanges.remove(i + 1);
+				mWritingRanges.remove(i);
+				break;
+			}
+		}
+		notifyAll();
+	}
+
+	private boolean isWriting(long start, long end) {
+		for (int i = 0; i < mWritingRanges.size(); i += 2) {
+			if (start <= mWritingRanges.get(i + 1) && end >= mWritingRanges.get(i)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
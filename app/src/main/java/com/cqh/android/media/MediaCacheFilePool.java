@@ -0,0 +1,136 @@
+package com.cqh.android.media;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存文件句柄池，同一个缓存文件只打开一次，由正在使用它的请求线程、预缓存线程共用，读写都用按位置读写的FileChannel
+ * 引用计数归零时，由线程结束释放的立即关闭，其他情况空闲IDLE_TIMEOUT后关闭
+ */
+class MediaCacheFilePool {
+	private static final String TAG = MediaCacheFilePool.class.getSimpleName();
+
+	/** 句柄空闲多久后关闭 */
+	static final int IDLE_TIMEOUT = 10 * 1000;
+
+	private static HashMap<String, Handle> mHandles = new HashMap<String, Handle>();
+	private static ScheduledExecutorService mCloseExecutor = Executors.newSingleThreadScheduledExecutor();
+
+	/**
+	 * 获取缓存文件的句柄，引用计数加一，用完必须调用release
+	 */
+	static synchronized Handle acquire(File file) throws IOException {
+		Handle handle = mHandles.get(file.getName());
+		if (handle == null || !handle.mRaf.getChannel().isOpen() || !file.exists()) {
+			handle = new Handle(file.getName(), new RandomAccessFile(file, "rw"));
+			mHandles.put(file.getName(), handle);
+			Log.d(TAG, "打开缓存文件 " + file.getName());
+		}
+		handle.mRefCount++;
+		return handle;
+	}
+
+	static void release(Handle handle) {
+		release(handle, false);
+	}
+
+	/**
+	 * 引用计数减一
+	 *
+	 * @param closeIfUnused 引用计数归零时是否立即关闭，否则空闲IDLE_TIMEOUT后关闭
+	 */
+	static synchronized void release(final Handle handle, boolean closeIfUnused) {
+		if (--handle.mRefCount > 0) {
+			return;
+		}
+		if (mHandles.get(handle.mName) != handle) {
+			// 已被remove或被重新打开的句柄取代，没人再用了
+			close(handle);
+			return;
+		}
+		if (closeIfUnused) {
+			close(handle);
+			return;
+		}
+		final long generation = ++handle.mGeneration;
+		mCloseExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				closeIfIdle(handle, generation);
+			}
+		}, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 缓存文件被删除后调用，之后的acquire会重新打开新的文件；还在使用旧句柄的线程用完后照常释放
+	 */
+	static synchronized void remove(String name) {
+		Handle handle = mHandles.remove(name);
+		if (handle != null && handle.mRefCount == 0) {
+			close(handle);
+		}
+	}
+
+	/**
+	 * @return 是否有线程正在使用该缓存文件，例如正在播放或预缓存
+	 */
+	static synchronized boolean isInUse(String name) {
+		Handle handle = mHandles.get(name);
+		return handle != null && handle.mRefCount > 0;
+	}
+
+	/**
+	 * 没有线程在使用时删除缓存文件，和acquire互斥，删除后不会再有线程拿到旧文件的句柄
+	 *
+	 * @return 正在使用或删除失败时返回false
+	 */
+	static synchronized boolean deleteIfUnused(File file) {
+		if (isInUse(file.getName())) {
+			return false;
+		}
+		remove(file.getName());
+		return file.delete() || !file.exists();
+	}
+
+	private static synchronized void closeIfIdle(Handle handle, long generation) {
+		// 期间被重新获取过的句柄，由之后的释放决定何时关闭
+		if (handle.mRefCount == 0 && handle.mGeneration == generation) {
+			close(handle);
+		}
+	}
+
+	private static void close(Handle handle) {
+		if (mHandles.get(handle.mName) == handle) {
+			mHandles.remove(handle.mName);
+		}
+		try {
+			handle.mRaf.close();
+			Log.d(TAG, "关闭缓存文件 " + handle.mName);
+		} catch (IOException e) {
+			Log.e(TAG, "raf.close() error", e);
+		}
+	}
+
+	static class Handle {
+		private final String mName;
+		private final RandomAccessFile mRaf;
+		private int mRefCount;
+		private long mGeneration;
+
+		private Handle(String name, RandomAccessFile raf) {
+			mName = name;
+			mRaf = raf;
+		}
+
+		RandomAccessFile getFile() {
+			return mRaf;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.cqh.android.media;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * 缓存控制信息的预写日志
+ * 每次插入缓存后只在日志末尾追加一条记录，由MediaCacheFile定时批量写入数据库后再丢弃已写入的记录
+ * 异常退出后重放日志，就不会丢失还没写入数据库的缓存区间
+ * 每条记录追加后都同步到存储才返回，调用者在追加ADD记录前已把对应的数据同步到存储，记录存在即数据已落盘
+ */
+class MediaCacheJournal {
+	private static final String TAG = MediaCacheJournal.class.getSimpleName();
+
+	/** 日志文件名，和数据库放在同一目录 */
+	static final String JOURNAL_NAME = "CacheFileInfo.journal";
+	/** 截断日志时先写入的临时文件的后缀 */
+	static final String TMP_SUFFIX = ".tmp";
+
+	private static final byte RECORD_ADD = 1;
+	private static final byte RECORD_RESET = 2;
+	private static final byte RECORD_REMOVE = 3;
+
+	private final File mFile;
+	private RandomAccessFile mRaf;
+	private long mLength;
+
+	// 拼装一条记录，一次写入文件
+	private final ByteArrayOutputStream mRecordBytes = new ByteArrayOutputStream(64);
+	private final DataOutputStream mRecord = new DataOutputStream(mRecordBytes);
+
+	MediaCacheJournal(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * 记录该文件start-end（包含end）的数据已写入缓存文件
+	 */
+	synchronized void appendAdd(String fileName, long start, long end) {
+		try {
+			mRecordBytes.reset();
+			mRecord.writeByte(RECORD_ADD);
+			mRecord.writeUTF(fileName);
+			mRecord.writeLong(start);
+			mRecord.writeLong(end);
+			append();
+		} catch (IOException e) {
+			Log.e(TAG, "写入日志失败", e);
+		}
+	}
+
+	/**
+	 * 记录该文件的缓存控制信息被清空，文件长度为fileSize
+	 */
+	synchronized void appendReset(String fileName, long fileSize) {
+		try {
+			mRecordBytes.reset();
+			mRecord.writeByte(RECORD_RESET);
+			mRecord.writeUTF(fileName);
+			mRecord.writeLong(fileSize);
+			append();
+		} catch (IOException e) {
+			Log.e(TAG, "写入日志失败", e);
+		}
+	}
+
+	/**
+	 * 记录该文件start-end（包含end）所在的整块缓存被丢弃，一般是校验失败的块
+	 */
+	synchronized void appendRemove(String fileName, long start, long end) {
+		try {
+			mRecordBytes.reset();
+			mRecord.writeByte(RECORD_REMOVE);
+			mRecord.writeUTF(fileName);
+			mRecord.writeLong(start);
+			mRecord.writeLong(end);
+			append();
+		} catch (IOException e) {
+			Log.e(TAG, "写入日志失败", e);
+		}
+	}
+
+	private void append() throws IOException {
+		RandomAccessFile raf = open();
+		raf.seek(mLength);
+		raf.write(mRecordBytes.toByteArray(), 0, mRecordBytes.size());
+		raf.getFD().sync();
+		mLength += mRecordBytes.size();
+	}
+
+	private RandomAccessFile open() throws IOException {
+		if (mRaf == null) {
+			mFile.getParentFile().mkdirs();
+			mRaf = new RandomAccessFile(mFile, "rw");
+			mLength = mRaf.length();
+		}
+		return mRaf;
+	}
+
+	/**
+	 * @return 当前日志长度，写入数据库前记下，写入成功后用来丢弃这之前的记录
+	 */
+	synchronized long getLength() {
+		try {
+			open();
+		} catch (IOException e) {
+			Log.e(TAG, "打开日志失败", e);
+		}
+		return mLength;
+	}
+
+	/**
+	 * 丢弃position之前已经写入数据库的记录，保留之后追加的记录
+	 * 剩下的记录先写到临时文件并同步到存储，再替换日志文件，任何时候退出都不会丢失还没写入数据库的记录
+	 */
+	synchronized void discardBefore(long position) {
+		File tmpFile = new File(mFile.getPath() + TMP_SUFFIX);
+		try {
+			RandomAccessFile raf = open();
+			int remainLength = (int) (mLength - position);
+			byte[] remain = new byte[Math.max(remainLength, 0)];
+			if (remainLength > 0) {
+				raf.seek(position);
+				raf.readFully(remain);
+			}
+			RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
+			try {
+				tmp.setLength(0);
+				tmp.write(remain);
+				tmp.getFD().sync();
+			} finally {
+				tmp.close();
+			}
+			close();
+			if (!tmpFile.renameTo(mFile)) {
+				Log.e(TAG, "替换日志失败，保留原日志");
+				tmpFile.delete();
+			}
+			open();
+		} catch (IOException e) {
+			Log.e(TAG, "截断日志失败", e);
+		}
+	}
+
+	private void close() {
+		if (mRaf != null) {
+			try {
+				mRaf.close();
+			} catch (IOException e) {
+				Log.e(TAG, "关闭日志失败", e);
+			}
+			mRaf = null;
+		}
+	}
+
+	/**
+	 * 按写入顺序重放日志，末尾不完整的记录（写入时进程退出）会被截掉
+	 */
+	synchronized void replay(Visitor visitor) {
+		try {
+			RandomAccessFile raf = open();
+			if (mLength == 0) {
+				return;
+			}
+			byte[] data = new byte[(int) mLength];
+			raf.seek(0);
+			raf.readFully(data);
+			ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+			DataInputStream in = new DataInputStream(bytes);
+			long validLength = 0;
+			try {
+				while (bytes.available() > 0) {
+					byte type = in.readByte();
+					String fileName = in.readUTF();
+					if (type == RECORD_ADD) {
+						long start = in.readLong();
+						long end = in.readLong();
+						visitor.onAdd(fileName, start, end);
+					} else if (type == RECORD_RESET) {
+						visitor.onReset(fileName, in.readLong());
+					} else if (type == RECORD_REMOVE) {
+						long start = in.readLong();
+						long end = in.readLong();
+						visitor.onRemove(fileName, start, end);
+					} else {
+						Log.e(TAG, "日志记录类型异常 " + type);
+						break;
+					}
+					validLength = data.length - bytes.available();
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "日志末尾的记录不完整，截掉");
+			}
+			if (validLength < mLength) {
+				raf.setLength(validLength);
+				mLength = validLength;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "重放日志失败", e);
+		}
+	}
+
+	interface Visitor {
+		void onAdd(String fileName, long start, long end);
+		void onReset(String fileName, long fileSize);
+		void onRemove(String fileName, long start, long end);
+	}
+}
@@ -0,0 +1,161 @@
+package com.cqh.android.media;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 缓存文件的内存映射窗口，同一个文件的读取共用一个窗口，读取位置不在窗口内或文件长度变化时重新映射
+ * 读取只持有共享锁；截断缓存文件前必须先持有排他锁并解除映射，否则访问被截断的映射会导致进程崩溃
+ */
+class MediaCacheMappedFile {
+	private static final String TAG = MediaCacheMappedFile.class.getSimpleName();
+
+	/** 映射窗口的大小 */
+	static final int WINDOW_SIZE = 32 * 1024 * 1024;
+
+	private final File mFile;
+	private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+	private MappedByteBuffer mWindow;
+	private long mWindowStart;
+	private int mWindowLength;
+	private long mMappedFileSize;
+
+	MediaCacheMappedFile(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * 把position开始最多length字节的数据复制到buffer，读取前应确认这些数据已缓存
+	 *
+	 * @param fileSize 完整文件长度，缓存文件必须已是按偏移存放的稀疏文件；只比较长度分不出迁移到一半的文件，由调用者确认
+	 *
+	 * @return 读取的长度，可能因为到了窗口末尾而小于length；无法映射时返回-1
+	 */
+	int read(long position, byte[] buffer, int length, long fileSize) {
+		if (!lockWindow(position, fileSize)) {
+			return -1;
+		}
+		try {
+			ByteBuffer window = mWindow.duplicate();
+			int windowOffset = (int) (position - mWindowStart);
+			length = Math.min(length, mWindowLength - windowOffset);
+			window.position(windowOffset);
+			window.get(buffer, 0, length);
+			return length;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 把position开始最多length字节的数据写入target，读取前应确认这些数据已缓存
+	 *
+	 * @return 写入的长度，可能因为到了窗口末尾而小于length；无法映射时返回-1
+	 */
+	int transferTo(long position, int length, long fileSize, WritableByteChannel target) throws IOException {
+		if (!lockWindow(position, fileSize)) {
+			return -1;
+		}
+		try {
+			ByteBuffer window = mWindow.duplicate();
+			int windowOffset = (int) (position - mWindowStart);
+			length = Math.min(length, mWindowLength - windowOffset);
+			window.position(windowOffset);
+			window.limit(windowOffset + length);
+			while (window.hasRemaining()) {
+				target.write(window);
+			}
+			return length;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 解除映射，下次读取时重新映射
+	 */
+	void unmap() {
+		mLock.writeLock().lock();
+		mWindow = null;
+		mLock.writeLock().unlock();
+	}
+
+	/**
+	 * 截断缓存文件前调用，解除映射并阻止读取，直到调用unlockForTruncate
+	 */
+	void lockForTruncate() {
+		mLock.writeLock().lock();
+		mWindow = null;
+	}
+
+	void unlockForTruncate() {
+		mLock.writeLock().unlock();
+	}
+
+	/**
+	 * 持有共享锁，并确保窗口包含position，返回true后调用者负责释放共享锁
+	 */
+	private boolean lockWindow(long position, long fileSize) {
+		mLock.readLock().lock();
+		if (isInWindow(position, fileSize)) {
+			return true;
+		}
+		mLock.readLock().unlock();
+		mLock.writeLock().lock();
+		try {
+			if (!isInWindow(position, fileSize) && !map(position, fileSize)) {
+				return false;
+			}
+			// 持有排他锁时可以直接获取共享锁，释放排他锁后即降级为共享锁
+			mLock.readLock().lock();
+			return true;
+		} finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	private boolean isInWindow(long position, long fileSize) {
+		return mWindow != null && mMappedFileSize == fileSize
+				&& position >= mWindowStart && position < mWindowStart + mWindowLength;
+	}
+
+	private boolean map(long position, long fileSize) {
+		mWindow = null;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(mFile, "r");
+			if (raf.length() != fileSize) {
+				// 还是旧的紧凑存放的缓存文件，或者缓存文件异常，交给加锁读取的流程处理
+				return false;
+			}
+			long windowStart = position / WINDOW_SIZE * WINDOW_SIZE;
+			int windowLength = (int) Math.min(WINDOW_SIZE, fileSize - windowStart);
+			mWindow = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+			mWindowStart = windowStart;
+			mWindowLength = windowLength;
+			mMappedFileSize = fileSize;
+			Log.d(TAG, "映射缓存文件 " + mFile.getName() + " " + windowStart + "-" + (windowStart + windowLength - 1));
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "映射缓存文件失败", e);
+			return false;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					Log.e(TAG, "raf.close() error", e);
+				}
+			}
+		}
+	}
+}
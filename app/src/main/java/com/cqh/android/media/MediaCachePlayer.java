@@ -82,6 +82,8 @@ public class MediaCachePlayer implements OnBufferingUpdateListener, OnCompletion
 	}
 	public void setDataSource(String urlString, boolean cacheable) {
 		mediaClientProxy.interruptCurrentRequestThread();
+		// 切换播放源时把上一个源的缓存控制信息写入数据库
+		MediaCacheFile.flushCacheParts();
 		if (mMediaPlayer == null || !mHasSetDataSource || mPreparing) {
 			// 当MediaPlayer设置源失败 或者 在上一个源开始准备后还没成功，为了避免对下一个源产生影响，销毁它并重新实例化
 			releasePlayer();
@@ -107,6 +109,7 @@ public class MediaCachePlayer implements OnBufferingUpdateListener, OnCompletion
 		mFileName = FileUtils.getValidFileName(urlString);
 		mCacheable = cacheable;
 		mediaClientProxy.setCacheable(cacheable);
+		mediaClientProxy.setMediaDuration(0);
 
 		resetSeekBar();
 
@@ -254,6 +257,7 @@ public class MediaCachePlayer implements OnBufferingUpdateListener, OnCompletion
 		releasePlayer();
 		resetSeekBar();
 		mediaClientProxy.stopProxy();
+		MediaCacheFile.flushCacheParts();
 	}
 
 
@@ -289,6 +293,7 @@ public class MediaCachePlayer implements OnBufferingUpdateListener, OnCompletion
 		Log.d(TAG, mUrlString + "\nonPrepared");
 		mPreparing = false;
 		mPrepared = true;
+		mediaClientProxy.setMediaDuration(Math.max(mediaPlayer.getDuration(), 0));
 		mMediaCachePlayerListener.onPrepared(mediaPlayer.getDuration(), mAutoStartOnPrepared);
 		if (currentProgressDecimal > 0) {
 			int pos = (int) (mMediaPlayer.getDuration() * currentProgressDecimal);
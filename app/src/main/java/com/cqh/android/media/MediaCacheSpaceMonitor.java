@@ -0,0 +1,104 @@
+package com.cqh.android.media;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 缓存目录的空间监控，可用空间和缓存数据总量都记在内存里，判断能否缓存时不访问存储
+ * 可用空间每隔REFRESH_INTERVAL、或者写入REFRESH_WRITTEN_BYTES之后在后台重新读取，期间按写入的长度扣减
+ * 第一次读取完成前乐观地认为空间可用，真的写满时插入会失败，不会缓存出错的数据
+ */
+class MediaCacheSpaceMonitor {
+	private static final String TAG = MediaCacheSpaceMonitor.class.getSimpleName();
+
+	/** 重新读取可用空间的间隔 */
+	static final int REFRESH_INTERVAL = 30 * 1000;
+	/** 写入多少数据后重新读取可用空间 */
+	static final int REFRESH_WRITTEN_BYTES = 32 * 1024 * 1024;
+
+	private static ExecutorService mRefreshExecutor = Executors.newSingleThreadExecutor();
+	private static boolean mRefreshed;
+	private static boolean mRefreshScheduled;
+	private static boolean mDirAvailable = true;
+	private static long mFreeSpace = Long.MAX_VALUE;
+	private static long mRefreshTime;
+	private static long mWrittenBytes;
+	private static long mUsedBytes;
+
+	private static Runnable mRefreshTask = new Runnable() {
+		@Override
+		public void run() {
+			refresh();
+		}
+	};
+
+	/**
+	 * 缓存目录是否可用且可用空间大于预留最小值，只读内存中的记录，还没有记录或记录过期时在后台刷新，不在调用线程访问存储
+	 */
+	static synchronized boolean isSpaceAvailable() {
+		if (!mRefreshed || System.currentTimeMillis() - mRefreshTime > REFRESH_INTERVAL) {
+			refreshAsync();
+		}
+		return mDirAvailable && mFreeSpace - mWrittenBytes > MediaCacheFile.DIR_MIN_REMAIN_SIZE;
+	}
+
+	/**
+	 * 写入缓存数据后调用，累计缓存数据总量，超过上限时在后台删除旧的缓存文件
+	 */
+	static void onWrite(Context context, long length) {
+		boolean overQuota;
+		synchronized (MediaCacheSpaceMonitor.class) {
+			mUsedBytes += length;
+			mWrittenBytes += length;
+			if (mWrittenBytes > REFRESH_WRITTEN_BYTES) {
+				refreshAsync();
+			}
+			overQuota = mUsedBytes > MediaCacheEvictor.getMaxCacheSize();
+		}
+		if (overQuota) {
+			MediaCacheEvictor.trimAsync(context);
+		}
+	}
+
+	/**
+	 * 统计完整个缓存目录后调用，以统计的结果为准，并重新读取可用空间
+	 */
+	static synchronized void setUsedBytes(long usedBytes) {
+		mUsedBytes = usedBytes;
+		refreshAsync();
+	}
+
+	static synchronized long getUsedBytes() {
+		return mUsedBytes;
+	}
+
+	private static synchronized void refreshAsync() {
+		if (!mRefreshScheduled) {
+			mRefreshScheduled = true;
+			mRefreshExecutor.execute(mRefreshTask);
+		}
+	}
+
+	/**
+	 * 在刷新线程上读取缓存目录的可用空间，存储较慢时可能耗时较长，读取期间不持有锁，只在更新记录时持有
+	 */
+	private static void refresh() {
+		File dir = new File(MediaCacheFile.CACHE_FILE_PATH);
+		dir.mkdirs();
+		boolean dirAvailable = dir.exists();
+		long freeSpace = dirAvailable ? dir.getUsableSpace() : 0;
+		synchronized (MediaCacheSpaceMonitor.class) {
+			mRefreshed = true;
+			mRefreshScheduled = false;
+			mDirAvailable = dirAvailable;
+			mFreeSpace = freeSpace;
+			mWrittenBytes = 0;
+			mRefreshTime = System.currentTimeMillis();
+		}
+		Log.d(TAG, "缓存目录可用空间大小 " + freeSpace);
+	}
+}
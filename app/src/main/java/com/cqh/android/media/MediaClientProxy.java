@@ -7,9 +7,11 @@ import android.util.Log;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.channels.ServerSocketChannel;
 import java.util.StringTokenizer;
 
 /**
@@ -27,6 +29,7 @@ public class MediaClientProxy implements Runnable {
 
 	private MediaRequestThread mRequestThread;
 	private boolean mCacheable;
+	private int mMediaDuration;
 	private MediaRequestThread.RequestListener mRequestListener;
 	private MediaRequestThread.RequestErrorListener mRequestErrorListener;
 
@@ -72,7 +75,10 @@ public class MediaClientProxy implements Runnable {
 			if (mServerSocket != null && !mServerSocket.isClosed()) {
 				mServerSocket.close();
 			}
-			mServerSocket = new ServerSocket(mPort, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
+			// 通过ServerSocketChannel创建，接受的播放器请求才有SocketChannel，缓存数据可以直接从缓存文件传输过去
+			ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+			mServerSocket = serverSocketChannel.socket();
+			mServerSocket.bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), mPort));
 			mPort = mServerSocket.getLocalPort();
 			Log.d(TAG, "ServerSocket mPort " + mPort + " initializing");
 		} catch (IOException e) {
@@ -104,6 +110,33 @@ public class MediaClientProxy implements Runnable {
 		mCacheable = cacheable;
 	}
 
+	/**
+	 * 播放器知道媒体时长后调用，用于按时长换算预读范围，切换播放源时设为0
+	 */
+	public void setMediaDuration(int duration) {
+		mMediaDuration = duration;
+		if (mRequestThread != null) {
+			mRequestThread.setMediaDuration(duration);
+		}
+	}
+
+	/**
+	 * 设置播放时在播放位置之后预读多少数据，只对之后的请求生效
+	 *
+	 * @param bytes 预读的字节数，不知道媒体时长或者time为0时使用
+	 * @param time 预读的毫秒数，按文件长度和媒体时长换算成字节，0表示只按字节计算
+	 */
+	public static void setReadAheadHorizon(long bytes, int time) {
+		MediaSegmentDownloader.setReadAheadHorizon(bytes, time);
+	}
+
+	/**
+	 * 设置播放时并行预读的连接数，不包括返回给播放器的连接，0表示不预读，只对之后的请求生效
+	 */
+	public static void setReadAheadConnectionCount(int connectionCount) {
+		MediaSegmentDownloader.setConnectionCount(connectionCount);
+	}
+
 	public String getProxyURL(String url) {
 		if (startProxy()) {
 			return String.format("http://127.0.0.1:%d/%s", mPort, url);
@@ -137,6 +170,7 @@ public class MediaClientProxy implements Runnable {
 				if (connection != null && checkUrlTimeliness(connection)) {
 					interruptCurrentRequestThread();
 					mRequestThread = new MediaRequestThread(mContext, client, connection, mCacheable, mRequestListener, mRequestErrorListener);
+					mRequestThread.setMediaDuration(mMediaDuration);
 					Log.i(TAG, "================ MediaClientProxy捕获了一个播放器请求并开启处理线程 ================ " + mRequestThread.getId());
 					mRequestThread.start();
 				}
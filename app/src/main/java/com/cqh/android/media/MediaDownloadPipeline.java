@@ -0,0 +1,247 @@
+package com.cqh.android.media;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+
+/**
+ * 请求线程从网络下载播放位置所在的缺失区间时，把网络读取、写给播放器、写入缓存文件分开，各按自己的速度进行
+ * 下载线程从网络读到环形缓冲区，请求线程从环形缓冲区写给播放器，写入线程从环形缓冲区积累到一定长度写入缓存文件
+ * 播放器读得慢或者写入缓存慢时，只要环形缓冲区没满，网络读取就不受影响
+ */
+class MediaDownloadPipeline {
+	private static final String TAG = MediaDownloadPipeline.class.getSimpleName();
+
+	/** 环形缓冲区的最小容量，缓冲区池剩余不多时也至少分配这么多 */
+	static final int MIN_CAPACITY = 1024 * 1024;
+
+	private static final int READER_CLIENT = 0;
+	private static final int READER_CACHE = 1;
+
+	private final MediaCacheFile mCacheFile;
+	private final URL mUrl;
+	private final InputStream mData;
+	private final long mStart;
+	private final long mLength;
+	private final MediaRingBuffer mRing;
+	private final Thread mDownloadThread;
+	private final Thread mCacheThread;
+	// 网络读取出错时记下来，由请求线程抛出
+	private volatile IOException mError;
+	private volatile boolean mEndOfStream;
+
+	/**
+	 * @param url 数据的地址，用于按源站统计带宽
+	 * @param data 从start开始的网络数据，只读取length字节
+	 */
+	MediaDownloadPipeline(MediaCacheFile cacheFile, URL url, InputStream data, long start, long length) {
+		mCacheFile = cacheFile;
+		mUrl = url;
+		mData = data;
+		mStart = start;
+		mLength = length;
+		// seek时播放器在等数据，不等其他线程归还缓冲区
+		mRing = new MediaRingBuffer(MediaBufferPool.acquireNow(getCapacity(MediaTransferTuner.getFlushLength(), MediaBufferPool.getAvailableBytes())), 2);
+		mDownloadThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				download();
+			}
+		}, TAG + "-download");
+		mCacheThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				persist();
+			}
+		}, TAG + "-cache");
+	}
+
+	void start() {
+		mDownloadThread.start();
+		mCacheThread.start();
+	}
+
+	/**
+	 * 等待新数据并写给播放器，写的时候不占着环形缓冲区，网络读取照常进行
+	 *
+	 * @return 写给播放器的长度，数据都写完后返回-1
+	 */
+	int writeToClient(OutputStream out) throws IOException {
+		int length;
+		try {
+			length = mRing.awaitReadable(READER_CLIENT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			mRing.cancel();
+			return -1;
+		}
+		if (length <= 0) {
+			return -1;
+		}
+		out.write(mRing.getBuffer(), mRing.getReadOffset(READER_CLIENT), length);
+		mRing.commitRead(READER_CLIENT, length);
+		return length;
+	}
+
+	/**
+	 * 停止网络读取，等环形缓冲区里已下载的数据都写入缓存文件后返回，之后归还环形缓冲区
+	 */
+	void close() {
+		mRing.cancel();
+		// 播放器不再读取，不占用环形缓冲区
+		drainClient();
+		try {
+			mDownloadThread.join();
+			mCacheThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Log.d(TAG, "环形缓冲区 " + mRing.getStats());
+		if (!mDownloadThread.isAlive() && !mCacheThread.isAlive()) {
+			MediaBufferPool.release(mRing.getBuffer());
+		}
+	}
+
+	/**
+	 * @return 从网络读取的长度，close之后调用
+	 */
+	long getDownloadedLength() {
+		return mRing.getStats().writtenBytes;
+	}
+
+	/**
+	 * @return 网络读取时发生的错误，close之后调用
+	 */
+	IOException getError() {
+		return mError;
+	}
+
+	/**
+	 * @return 还没读够length网络数据就结束了，close之后调用
+	 */
+	boolean isEndOfStream() {
+		return mEndOfStream;
+	}
+
+	MediaRingBuffer.Stats getStats() {
+		return mRing.getStats();
+	}
+
+	/**
+	 * 环形缓冲区最好能放下两次写入缓存的数据，写入时网络读取不用等；
+	 * 但要从缓冲区池剩余的空间里分配，并给写入线程留出一次写入的缓冲区，最少MIN_CAPACITY
+	 *
+	 * @param availableBytes 缓冲区池中还能借出的字节数
+	 */
+	static int getCapacity(int flushLength, long availableBytes) {
+		int capacity = Math.max(2 * flushLength, MIN_CAPACITY);
+		long remain = availableBytes - MediaBufferPool.getBufferSize(flushLength);
+		if (capacity > remain) {
+			// 缓冲区池按2的幂分配，向下取整才不会超出剩余的空间
+			capacity = remain < MIN_CAPACITY ? MIN_CAPACITY : (int) Long.highestOneBit(remain);
+		}
+		return capacity;
+	}
+
+	private void drainClient() {
+		try {
+			int length;
+			while ((length = mRing.awaitReadable(READER_CLIENT)) > 0) {
+				mRing.commitRead(READER_CLIENT, length);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 下载线程：从网络读到环形缓冲区，满了才等待
+	 */
+	private void download() {
+		long downloadLength = 0;
+		try {
+			while (downloadLength < mLength) {
+				int writable = mRing.awaitWritable();
+				if (writable < 0) {
+					break;
+				}
+				int readLength = (int) Math.min(Math.min(writable, MediaTransferTuner.getReadLength()), mLength - downloadLength);
+				long readStart = System.nanoTime();
+				int readBytes = mData.read(mRing.getBuffer(), mRing.getWriteOffset(), readLength);
+				MediaBandwidthEstimator.onNetworkRead(mUrl, readBytes, System.nanoTime() - readStart);
+				if (readBytes == -1) {
+					Log.e(TAG, "缓存控制信息告诉我还能从网络读数据，可流的结束已到达");
+					mEndOfStream = true;
+					break;
+				}
+				mRing.commitWrite(readBytes);
+				downloadLength += readBytes;
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "读取网络请求内容时出错，已读的数据照常写入缓存文件");
+			mError = e;
+		} catch (InterruptedException e) {
+			// 结束
+		} finally {
+			mRing.finish();
+		}
+	}
+
+	/**
+	 * 写入线程：从环形缓冲区积累到写入长度后写入缓存文件，写入失败时取消整个下载，由请求线程重新分析
+	 */
+	private void persist() {
+		int flushLength = MediaTransferTuner.getFlushLength();
+		byte[] buff = MediaBufferPool.acquireNow(flushLength);
+		long position = mStart;
+		int hasDownloadLength = 0;
+		boolean failed = false;
+		try {
+			int length;
+			while ((length = mRing.awaitReadable(READER_CACHE)) > 0) {
+				if (failed) {
+					mRing.commitRead(READER_CACHE, length);
+					continue;
+				}
+				length = Math.min(length, buff.length - hasDownloadLength);
+				System.arraycopy(mRing.getBuffer(), mRing.getReadOffset(READER_CACHE), buff, hasDownloadLength, length);
+				mRing.commitRead(READER_CACHE, length);
+				hasDownloadLength += length;
+				if (hasDownloadLength >= flushLength) {
+					if (!flush(buff, position, hasDownloadLength)) {
+						failed = true;
+						continue;
+					}
+					position += hasDownloadLength;
+					hasDownloadLength = 0;
+					flushLength = MediaTransferTuner.getFlushLength();
+					if (buff.length < flushLength) {
+						MediaBufferPool.release(buff);
+						buff = MediaBufferPool.acquireNow(flushLength);
+					}
+				}
+			}
+			if (!failed && hasDownloadLength > 0) {
+				flush(buff, position, hasDownloadLength);
+			}
+		} catch (InterruptedException e) {
+			// 结束
+		} finally {
+			MediaBufferPool.release(buff);
+		}
+	}
+
+	private boolean flush(byte[] buff, long position, int length) {
+		long writeStart = System.nanoTime();
+		if (!mCacheFile.insert(position, buff, length)) {
+			Log.e(TAG, "将网络数据插入缓存文件时失败，停止下载，再次分析");
+			mRing.cancel();
+			return false;
+		}
+		MediaTransferTuner.onCacheWrite(length, System.nanoTime() - writeStart);
+		return true;
+	}
+}
@@ -21,8 +21,8 @@ public class MediaPreCacheThread extends Thread {
                 boolean abnormal = false; // 缓存文件是否异常不可用
                 if (cacheFile == null || (abnormal = !cacheFile.isAvailable()) || cacheFile.getNeedDownloadLength(0) != -1) {
                     if (abnormal) {
-                        Log.e(TAG, "缓存数据异常不可用，初始化缓存信息，然后预缓存");
-                        cacheFile.initCacheParts();
+                        Log.e(TAG, "缓存数据异常不可用，保留可信的部分，然后预缓存");
+                        cacheFile.recover();
                     }
                     // 如果文件的缓存不存在，或者不可用，或者文件的头部没有缓存，都需要预加载
                     new MediaPreCacheThread(context, cacheFile, getConnection(urlString)).start();
@@ -37,20 +37,18 @@ public class MediaPreCacheThread extends Thread {
     }
 
     private static HttpURLConnection getConnection(String urlString) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
-        // 取消gzip数据压缩，避免内容长度不准确
-        connection.setRequestProperty("Accept-Encoding", "identity");
-        // 添加默认Range，方便后续处理
-        connection.setRequestProperty("Range", "bytes=0-");
-        connection.setConnectTimeout(10000);
-        connection.setReadTimeout(30000);
-        return connection;
+        // 只请求预缓存的部分，读完后连接可以复用到之后的播放请求
+        return MediaUpstreamConnections.open(new URL(urlString), 0, PRECACHE_SIZE - 1);
     }
 
     private Context mContext;
     private MediaCacheFile mCacheFile;
     private HttpURLConnection mConnection;
     private InputStream mData;
+    // mData读到的位置和能读到的最后一个位置，-1表示到文件末尾
+    private long mDataPos;
+    private long mDataEnd = -1;
+    private byte[] mBuff;
 
     public MediaPreCacheThread(Context context, MediaCacheFile cacheFile, HttpURLConnection connection) {
         mContext = context;
@@ -62,37 +60,50 @@ public class MediaPreCacheThread extends Thread {
     public void run() {
         try {
             Log.i(TAG, "================ 一个预缓存线程开启 ================= " + getId());
+            long connectStart = System.nanoTime();
             mConnection.connect();
             int code = mConnection.getResponseCode();
+            MediaBandwidthEstimator.onFirstByte(mConnection.getURL(), System.nanoTime() - connectStart);
             if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
                 throw new IOException("responseCode= " + code + "  URL-> " + mConnection.getURL());
             }
-            int contentSize = HttpUtils.getContentSize(mConnection);
+            mDataEnd = code == HttpURLConnection.HTTP_PARTIAL ? HttpUtils.getRangeEnd(mConnection) : -1;
+            long contentSize = HttpUtils.getContentSize(mConnection);
             if (contentSize <= 0) {
                 Log.e(TAG, "预缓存 网络请求的文件长度<=0");
                 return;
             }
+            String validator = HttpUtils.getValidator(mConnection);
             if (mCacheFile == null) {
-                mCacheFile = MediaCacheFile.getInstance(mContext, mConnection.getURL(), contentSize);
+                mCacheFile = MediaCacheFile.getInstance(mContext, mConnection.getURL(), contentSize, validator);
             } else if (contentSize != mCacheFile.getFileSize()) {
                 Log.e(TAG, "预缓存 网络请求的文件长度和缓存控制信息中的文件长度不一致，冲突，初始化缓存文件长度和信息，然后预缓存");
                 mCacheFile.initFileSize(contentSize);
+            } else if (!mCacheFile.checkValidator(validator)) {
+                Log.e(TAG, "预缓存 网络请求的文件校验信息和记录的不一致，文件已变化，初始化缓存文件长度和信息，然后预缓存");
+                mCacheFile.initFileSize(contentSize);
             }
+            // 预缓存期间保持缓存文件打开，也防止被容量管理删除
+            mCacheFile.open();
             mData = mConnection.getInputStream();
-            byte[] buff = new byte[PRECACHE_SIZE];
-            int needDownloadLength = Math.min(PRECACHE_SIZE, mCacheFile.getNeedDownloadLength(0));
+            mBuff = MediaBufferPool.acquire(PRECACHE_SIZE);
+            byte[] buff = mBuff;
+            int needDownloadLength = (int) Math.min(PRECACHE_SIZE, mCacheFile.getNeedDownloadLength(0));
             int hasDownloadLength = 0;
-            final int MAX_LENGTH = 40 * 1024;
+            final int readLength = MediaTransferTuner.getReadLength();
             int readBytes;
             while (needDownloadLength - hasDownloadLength > 0) {
                 try {
-                    readBytes = mData.read(buff, hasDownloadLength, Math.min(needDownloadLength - hasDownloadLength, MAX_LENGTH));
+                    long readStart = System.nanoTime();
+                    readBytes = mData.read(buff, hasDownloadLength, Math.min(needDownloadLength - hasDownloadLength, readLength));
+                    MediaBandwidthEstimator.onNetworkRead(mConnection.getURL(), readBytes, System.nanoTime() - readStart);
                 } catch (IOException e) {
                     mCacheFile.insert(0, buff, hasDownloadLength);
                     Log.d(TAG, "预缓存 读取网络请求内容时出错，将缓冲区里的数据插入缓存文件，再抛出错误");
                     throw e;
                 }
                 if (readBytes != -1) {
+                    mDataPos += readBytes;
                     hasDownloadLength += readBytes;
                     if (needDownloadLength - hasDownloadLength <= 0) {
                         // 下载完毕时，将buff中的数据插入缓存文件
@@ -113,14 +124,12 @@ public class MediaPreCacheThread extends Thread {
             Log.e(TAG, "预缓存 发生异常");
             e.printStackTrace();
         } finally {
-            if (mData != null) {
-                try {
-                    mData.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            MediaBufferPool.release(mBuff);
+            mBuff = null;
+            if (mCacheFile != null) {
+                mCacheFile.close();
             }
-            mConnection.disconnect();
+            MediaUpstreamConnections.release(mConnection, mData, mDataEnd == -1 ? -1 : mDataEnd - mDataPos + 1);
             Log.i(TAG, "================ 一个预缓存线程关闭 ================= " + getId());
         }
     }
@@ -11,6 +11,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 
 public class MediaRequestThread extends Thread {
 	private static final String TAG = MediaRequestThread.class.getSimpleName();
@@ -24,7 +25,15 @@ public class MediaRequestThread extends Thread {
 	private MediaCacheFile mCacheFile;
 	private HttpURLConnection mConnection;
 	private InputStream mData;
-	private int mRangeStart, mDataPos;
+	private long mRangeStart, mDataPos;
+	// mData能读到的最后一个位置，-1表示到文件末尾
+	private long mDataEnd = -1;
+	// 并行下载播放位置之后缺失的数据，请求处理结束时停止
+	private volatile MediaSegmentDownloader mDownloader;
+	// 媒体时长，毫秒，0表示还不知道，用于换算预读范围
+	private volatile int mMediaDuration;
+	// 从缓冲区池借的读写缓冲区，请求处理结束时归还
+	private byte[] mBuff;
 
 	private RequestListener mRequestListener;
 	private RequestErrorListener mRequestErrorListener;
@@ -33,6 +42,8 @@ public class MediaRequestThread extends Thread {
 	public static final int RW_BUFF_MIN_LENGTH = 256 * 1024;
 	/** 读写缓冲区最大长度 缓冲区太大会占用大量内存 */
 	public static final int RW_BUFF_MAX_LENGTH = 4 * 1024 * 1024;
+	/** 等待并行下载的分段写入缓存的最长时间，之后重新检查 */
+	public static final int PROGRESS_WAIT_TIME = 200;
 
 
 	public MediaRequestThread(Context context, Socket client, HttpURLConnection connection, boolean cacheable, RequestListener requestListener, RequestErrorListener requestErrorListener) {
@@ -57,6 +68,14 @@ public class MediaRequestThread extends Thread {
 		mRequestErrorListener = listener;
 	}
 
+	public void setMediaDuration(int duration) {
+		mMediaDuration = duration;
+		MediaSegmentDownloader downloader = mDownloader;
+		if (downloader != null) {
+			downloader.setDuration(duration);
+		}
+	}
+
 	@Override
 	public void run() {
 		mRangeStart = HttpUtils.getRangeStart(mConnection);
@@ -65,6 +84,7 @@ public class MediaRequestThread extends Thread {
             mCacheable = mCacheable && MediaCacheFile.isCacheable(mConnection.getURL()) && initCacheFile();
 			if (mCacheable) {
 				Log.i(TAG, "--------------------- 开始处理播放器请求，可以缓存 " + getId());
+				mCacheFile.open();
 				processRequestWithCache();
 			} else {
 				Log.i(TAG, "------------------- 开始处理播放器请求，不可以缓存 " + getId());
@@ -98,20 +118,26 @@ public class MediaRequestThread extends Thread {
 				e.printStackTrace();
 			}
 		} finally {
-			if (mData != null) {
-				try {
-					mData.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+			if (mDownloader != null) {
+				mDownloader.stop();
+			}
+			MediaBufferPool.release(mBuff);
+			mBuff = null;
+			if (mCacheFile != null) {
+				mCacheFile.close();
 			}
-			mConnection.disconnect();
+			releaseConnection();
 			try {
 				mClient.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 			Log.i(TAG, "============ MediaClientProxy捕获的一个播放器请求处理结束并关闭 ==================== " + getId());
+			Log.d(TAG, "读写缓冲区池 " + MediaBufferPool.getStats());
+			Log.d(TAG, "读写长度 " + MediaTransferTuner.getStats());
+			if (mConnection != null) {
+				Log.d(TAG, "带宽估计 " + MediaBandwidthEstimator.getEstimate(mConnection.getURL().getHost()));
+			}
 		}
 	}
 
@@ -122,84 +148,119 @@ public class MediaRequestThread extends Thread {
 			// 缓存文件不存在的话，需要发起网络请求，并获取文件长度来初始化缓存文件
 			// 如果该请求异常，就无法从网络读取，而缓存也没用，那么没有继续处理的必要，让它抛出异常
             httpConnect();
-            int contentSize = HttpUtils.getContentSize(mConnection);
+            long contentSize = HttpUtils.getContentSize(mConnection);
             if (contentSize > 0) {
-                mCacheFile = MediaCacheFile.getInstance(mContext, mConnection.getURL(), contentSize);
+                mCacheFile = MediaCacheFile.getInstance(mContext, mConnection.getURL(), contentSize, HttpUtils.getValidator(mConnection));
             }
         }
 		return mCacheFile != null;
 	}
 
 	private void processRequestWithCache() throws IOException {
-		int fileSize = mCacheFile.getFileSize();
+		long fileSize = mCacheFile.getFileSize();
 		// 返回请求的响应头
 		sendResponseHeader(mRangeStart, fileSize - 1, fileSize);
-		final int BUFF_LENGTH = Math.min(Math.max((int) (fileSize / 9.9), RW_BUFF_MIN_LENGTH), RW_BUFF_MAX_LENGTH);
-		byte[] buff = new byte[BUFF_LENGTH];
+		final int BUFF_LENGTH = (int) Math.min(Math.max((long) (fileSize / 9.9), RW_BUFF_MIN_LENGTH), RW_BUFF_MAX_LENGTH);
+		// 缓冲区只在需要从网络下载或者无法直接传输缓存数据时才分配，完全缓存的文件不需要
+		byte[] buff = null;
+		SocketChannel clientChannel = mClient.getChannel();
 		Log.d(TAG, "缓存控制信息: " + mCacheFile.getCacheParts() + "  " + mCacheFile.getFileSize());
+		if (MediaSegmentDownloader.getConnectionCount() > 0) {
+			MediaSegmentDownloader downloader = new MediaSegmentDownloader(mCacheFile, mConnection.getURL());
+			downloader.setPlayhead(mRangeStart, -1);
+			downloader.setDuration(mMediaDuration);
+			downloader.start();
+			mDownloader = downloader;
+		}
 		while (mRunnable && mRangeStart < fileSize) {
-			int needDownloadLength = mCacheFile.getNeedDownloadLength(mRangeStart);
+			long needDownloadLength = mCacheFile.getNeedDownloadLength(mRangeStart);
+			if (needDownloadLength > 0 && mDownloader != null) {
+				// 只下载到下一个正在并行下载的分段之前，下载线程不会下载这一段
+				needDownloadLength = mDownloader.reserveForeground(mRangeStart, needDownloadLength);
+				if (needDownloadLength == 0) {
+					// 播放位置所在的分段正在并行下载，等它写入缓存，不重复下载
+					try {
+						mDownloader.awaitProgress(PROGRESS_WAIT_TIME);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					continue;
+				}
+			} else if (mDownloader != null) {
+				mDownloader.setPlayhead(mRangeStart, -1);
+			}
 			if (needDownloadLength == -1) {
-				int readBytes = mCacheFile.read(buff, mRangeStart);
+				int readBytes;
+				if (clientChannel != null) {
+					// 缓存数据从缓存文件直接传输到播放器的连接
+					readBytes = mCacheFile.transferTo(mRangeStart, BUFF_LENGTH, clientChannel);
+				} else {
+					if (buff == null) {
+						buff = acquireBuffer(BUFF_LENGTH);
+					}
+					readBytes = mCacheFile.read(buff, mRangeStart);
+					if (readBytes > 0) {
+						mClient.getOutputStream().write(buff, 0, readBytes);
+					}
+				}
 				if (readBytes > 0) {
-					mClient.getOutputStream().write(buff, 0, readBytes);
 					mRangeStart += readBytes;
 					if (mRequestListener != null) {
 						mRequestListener.onWriteIntoClient((float) mRangeStart / fileSize);
 					}
 				}
 			} else {
-				httpConnect();
-				int contentSize = HttpUtils.getContentSize(mConnection);
+				// 只请求这一段缺失的数据，读完后连接可以复用到下一段
+				httpConnect(mRangeStart + needDownloadLength - 1);
+				long contentSize = HttpUtils.getContentSize(mConnection);
+				if (contentSize <= 0) {
+					Log.e(TAG, "网络请求的文件长度<=0，无法和缓存控制信息比较，不改动缓存文件，结束");
+					return;
+				}
 				if (contentSize != fileSize) {
                     Log.e(TAG, "网络请求的文件长度和缓存控制信息中的文件长度不一致，冲突，初始化缓存文件长度和信息，再结束");
                     mCacheFile.initFileSize(contentSize);
 					return;
 				}
-				final int MAX_LENGTH = 40 * 1024;
-				int hasDownloadLength = 0;
-				int readBytes;
-				while (needDownloadLength - hasDownloadLength > 0) {
-					if (!mRunnable) {
-						Log.d(TAG, "读取网络请求内容时线程即将要关闭，将缓冲区里的数据插入缓存文件，再跳出循环，等待结束");
-						mCacheFile.insert(mRangeStart - hasDownloadLength, buff, hasDownloadLength);
-						break;
-					}
-					try {
-						readBytes = mData.read(buff, hasDownloadLength, Math.min(needDownloadLength - hasDownloadLength, MAX_LENGTH));
-					} catch (IOException e) {
-						Log.d(TAG, "读取网络请求内容时出错，将缓冲区里的数据插入缓存文件，再抛出错误");
-						mCacheFile.insert(mRangeStart - hasDownloadLength, buff, hasDownloadLength);
-						throw e;
-					}
-					if (readBytes != -1) {
-						mDataPos += readBytes;
-						// 返回请求的数据
-						mClient.getOutputStream().write(buff, hasDownloadLength, readBytes);
-						mRangeStart += readBytes;
+				if (!mCacheFile.checkValidator(HttpUtils.getValidator(mConnection))) {
+					Log.e(TAG, "网络请求的文件校验信息和记录的不一致，文件已变化，初始化缓存文件长度和信息，再结束");
+					mCacheFile.initFileSize(contentSize);
+					return;
+				}
+				// 网络读取、写给播放器、写入缓存文件分开进行，播放器读得慢或者写入缓存慢时不拖慢网络读取
+				MediaDownloadPipeline pipeline = new MediaDownloadPipeline(mCacheFile, mConnection.getURL(), mData, mRangeStart, needDownloadLength);
+				pipeline.start();
+				long downloadStart = mRangeStart;
+				try {
+					int writeBytes;
+					while ((writeBytes = pipeline.writeToClient(mClient.getOutputStream())) != -1) {
+						mRangeStart += writeBytes;
+						if (mDownloader != null) {
+							// 预读范围跟着播放位置前进，请求线程的区间还没下载完，继续登记着
+							mDownloader.setPlayhead(mRangeStart, downloadStart + needDownloadLength - 1);
+						}
 						if (mRequestListener != null) {
 							mRequestListener.onWriteIntoClient((float) mRangeStart / fileSize);
 						}
-						hasDownloadLength += readBytes;
-						if (hasDownloadLength / 1024 % 100 == 0) {
-							Log.d(TAG, "√√√↑↑↑-- READ 网络 length:" + hasDownloadLength + "  " + (mRangeStart - hasDownloadLength) + "-" + (mRangeStart - 1) + " --↑↑↑√√√");
-						}
-						if (hasDownloadLength + MAX_LENGTH > buff.length || needDownloadLength - hasDownloadLength <= 0) {
-							Log.d(TAG, "√√√↑↑↑-- READ 网络 length:" + hasDownloadLength + "  " + (mRangeStart - hasDownloadLength) + "-" + (mRangeStart - 1) + " --↑↑↑√√√");
-							// 每当下载的缓存接近buff.length，或是下载完毕时，将buff中的数据插入缓存文件
-							if (mCacheFile.insert(mRangeStart - hasDownloadLength, buff, hasDownloadLength)) {
-								needDownloadLength -= hasDownloadLength;
-								hasDownloadLength = 0;
-							} else {
-                                Log.e(TAG, "将网络数据插入缓存文件时失败，跳出循环，再次分析");
-								break;
-							}
+						if (!mRunnable) {
+							Log.d(TAG, "写给播放器时线程即将要关闭，已下载的数据写入缓存文件后，跳出循环，等待结束");
+							break;
 						}
-					} else {
-						Log.e(TAG, "缓存控制信息告诉我还能从网络读数据，可流的结束已到达，将缓冲区里的数据插入缓存文件，再结束");
-                        mCacheFile.insert(mRangeStart - hasDownloadLength, buff, hasDownloadLength);
-                        return;
 					}
+				} finally {
+					// 等已下载的数据都写入缓存文件
+					pipeline.close();
+					mDataPos += pipeline.getDownloadedLength();
+				}
+				Log.d(TAG, "√√√↑↑↑-- READ 网络 length:" + pipeline.getDownloadedLength() + "  " + downloadStart + "-" + (downloadStart + pipeline.getDownloadedLength() - 1) + " --↑↑↑√√√");
+				if (pipeline.getError() != null) {
+					Log.d(TAG, "读取网络请求内容时出错，已下载的数据已写入缓存文件，再抛出错误");
+					throw pipeline.getError();
+				}
+				if (pipeline.isEndOfStream()) {
+					Log.e(TAG, "缓存控制信息告诉我还能从网络读数据，可流的结束已到达，已下载的数据已写入缓存文件，再结束");
+					return;
 				}
 			}
 		}
@@ -207,12 +268,18 @@ public class MediaRequestThread extends Thread {
 
 	private void processRequestWithoutCache() throws IOException {
 		httpConnect();
-		int contentSize = HttpUtils.getContentSize(mConnection);
+		long contentSize = HttpUtils.getContentSize(mConnection);
 		// 返回请求的响应头
 		sendResponseHeader(mRangeStart, contentSize - 1, contentSize);
-		byte[] buff = new byte[40 * 1024];
+		byte[] buff = acquireBuffer(40 * 1024);
 		int readBytes;
-		while (mRunnable && (readBytes = mData.read(buff)) != -1) {
+		while (mRunnable) {
+			long readStart = System.nanoTime();
+			readBytes = mData.read(buff);
+			if (readBytes == -1) {
+				break;
+			}
+			MediaBandwidthEstimator.onNetworkRead(mConnection.getURL(), readBytes, System.nanoTime() - readStart);
             mDataPos += readBytes;
 			// 返回请求的数据
 			mClient.getOutputStream().write(buff, 0, readBytes);
@@ -226,29 +293,66 @@ public class MediaRequestThread extends Thread {
 		}
 	}
 
+	/**
+	 * 从缓冲区池借读写缓冲区，长度可能比length大；已借的缓冲区不够长时换一个，调用时缓冲区里不能有还没写出的数据
+	 */
+	private byte[] acquireBuffer(int length) {
+		if (mBuff != null && mBuff.length < length) {
+			MediaBufferPool.release(mBuff);
+			mBuff = null;
+		}
+		if (mBuff == null) {
+			mBuff = MediaBufferPool.acquire(length);
+		}
+		return mBuff;
+	}
+
 	private void httpConnect() throws IOException {
 		if (mRangeStart != mDataPos) {
-			HttpURLConnection con = (HttpURLConnection) mConnection.getURL().openConnection();
-			// 取消gzip数据压缩，避免内容长度不准确
-			con.setRequestProperty("Accept-Encoding", "identity");
 			// 添加设置了start的Range，以改变读取位置
-			con.setRequestProperty("Range", "bytes=" + mRangeStart + "-");
-			con.setConnectTimeout(10000);
-			con.setReadTimeout(30000);
-			if (mData != null) {
-				mData.close();
-			}
-			mConnection.disconnect();
+			HttpURLConnection con = MediaUpstreamConnections.open(mConnection.getURL(), mRangeStart, -1);
+			releaseConnection();
 			mConnection = con;
 			Log.d(TAG, "为了改变读取位置，创建了新连接，更替原连接");
 		}
+		connect();
+	}
+
+	/**
+	 * 请求mRangeStart到rangeEnd（包含rangeEnd）的数据，当前连接正好在这个位置并且能读到rangeEnd时继续使用，
+	 * 否则换一个只请求这一段的连接，原连接还能复用的回到长连接池
+	 */
+	private void httpConnect(long rangeEnd) throws IOException {
+		if (mData != null && mRangeStart == mDataPos && (mDataEnd == -1 || rangeEnd <= mDataEnd)) {
+			return;
+		}
+		HttpURLConnection con = MediaUpstreamConnections.open(mConnection.getURL(), mRangeStart, rangeEnd);
+		releaseConnection();
+		mConnection = con;
+		connect();
+	}
+
+	private void connect() throws IOException {
+		long connectStart = System.nanoTime();
 		mConnection.connect();
 		int code = mConnection.getResponseCode();
+		MediaBandwidthEstimator.onFirstByte(mConnection.getURL(), System.nanoTime() - connectStart);
 		if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
 			throw new IOException("responseCode=" + code + " URL->" + mConnection.getURL());
 		}
 		mData = mConnection.getInputStream();
 		mDataPos = mRangeStart;
+		mDataEnd = code == HttpURLConnection.HTTP_PARTIAL ? HttpUtils.getRangeEnd(mConnection) : -1;
+	}
+
+	/**
+	 * 不再从当前连接读取时调用，剩下的数据不多时读完，让连接可以被下一个请求复用
+	 */
+	private void releaseConnection() {
+		long remaining = mDataEnd == -1 ? -1 : mDataEnd - mDataPos + 1;
+		MediaUpstreamConnections.release(mConnection, mData, remaining);
+		mData = null;
+		mDataEnd = -1;
 	}
 
 	/**
@@ -259,7 +363,7 @@ public class MediaRequestThread extends Thread {
 	 * @param fileSize 请求的文件长度
 	 * @throws IOException
 	 */
-	private void sendResponseHeader(int rangeStart, int rangeEnd, int fileSize) throws IOException {
+	private void sendResponseHeader(long rangeStart, long rangeEnd, long fileSize) throws IOException {
 		String httpString = genResponseHeader(rangeStart, rangeEnd, fileSize);
 		byte[] httpHeader = httpString.toString().getBytes();
 		mClient.getOutputStream().write(httpHeader);
@@ -269,7 +373,7 @@ public class MediaRequestThread extends Thread {
 	/**
 	 * 生成返回MediaPlayer的Response Header
 	 */
-	private String genResponseHeader(int rangeStart, int rangeEnd, int fileSize) {
+	static String genResponseHeader(long rangeStart, long rangeEnd, long fileSize) {
 		StringBuffer sb = new StringBuffer();
 		sb.append("HTTP/1.1 206 Partial Content").append("\n");
 		sb.append("Content-Type: audio/mpeg").append("\n");
@@ -0,0 +1,192 @@
+package com.cqh.android.media;
+
+/**
+ * 一个写入者、多个读取者的有界环形缓冲区，每个读取者有自己的读取位置，按自己的速度读取
+ * 所有读取者都读过的数据才腾出空间，只有缓冲区满了写入者才需要等待，读取者之间互不等待
+ * 读写都分两步：先等待并取得连续可用的一段，在锁外直接读写缓冲区数组里的这一段，再提交长度，
+ * 这样网络读取、写给播放器这些耗时操作不会占着锁
+ */
+class MediaRingBuffer {
+	private final byte[] mBuffer;
+	private final int mCapacity;
+	// 写入和每个读取者读取的总长度，对容量取余就是在数组中的位置
+	private long mWritePos;
+	private final long[] mReadPos;
+	// 写入者已经写完，读取者读完剩下的数据后结束
+	private boolean mFinished;
+	// 已取消，写入者不再写入，读取者读完剩下的数据后结束
+	private boolean mCancelled;
+
+	private long mPeakOccupancy;
+	private long mFullWaitCount;
+	private long mFullWaitNanos;
+	private final long[] mEmptyWaitCount;
+	private final long[] mPeakLag;
+
+	/**
+	 * @param buffer 用作缓冲区的数组，整个数组都会用到
+	 * @param readerCount 读取者数，读取者用0到readerCount-1表示
+	 */
+	MediaRingBuffer(byte[] buffer, int readerCount) {
+		mBuffer = buffer;
+		mCapacity = buffer.length;
+		mReadPos = new long[readerCount];
+		mEmptyWaitCount = new long[readerCount];
+		mPeakLag = new long[readerCount];
+	}
+
+	byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * 等待缓冲区有空间
+	 *
+	 * @return 从getWriteOffset开始连续可写的长度，已取消时返回-1
+	 */
+	synchronized int awaitWritable() throws InterruptedException {
+		long waitStart = 0;
+		while (!mCancelled && getOccupancy() >= mCapacity) {
+			if (waitStart == 0) {
+				waitStart = System.nanoTime();
+				mFullWaitCount++;
+			}
+			wait();
+		}
+		if (waitStart != 0) {
+			mFullWaitNanos += System.nanoTime() - waitStart;
+		}
+		if (mCancelled) {
+			return -1;
+		}
+		int offset = getWriteOffset();
+		return (int) Math.min(mCapacity - getOccupancy(), mCapacity - offset);
+	}
+
+	synchronized int getWriteOffset() {
+		return (int) (mWritePos % mCapacity);
+	}
+
+	/**
+	 * 写入者写完从getWriteOffset开始的length字节后调用
+	 */
+	synchronized void commitWrite(int length) {
+		mWritePos += length;
+		mPeakOccupancy = Math.max(mPeakOccupancy, getOccupancy());
+		for (int i = 0; i < mReadPos.length; i++) {
+			mPeakLag[i] = Math.max(mPeakLag[i], mWritePos - mReadPos[i]);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * 写入者不再写入时调用，读取者读完剩下的数据后结束
+	 */
+	synchronized void finish() {
+		mFinished = true;
+		notifyAll();
+	}
+
+	/**
+	 * 取消后写入者不再写入，已写入的数据读取者照常读完
+	 */
+	synchronized void cancel() {
+		mCancelled = true;
+		notifyAll();
+	}
+
+	synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * 等待有新数据给该读取者
+	 *
+	 * @return 从getReadOffset开始连续可读的长度，写入者已结束并且数据都读完时返回-1
+	 */
+	synchronized int awaitReadable(int reader) throws InterruptedException {
+		boolean waited = false;
+		while (mWritePos == mReadPos[reader] && !mFinished) {
+			if (!waited) {
+				waited = true;
+				mEmptyWaitCount[reader]++;
+			}
+			wait();
+		}
+		long available = mWritePos - mReadPos[reader];
+		if (available == 0) {
+			return -1;
+		}
+		int offset = getReadOffset(reader);
+		return (int) Math.min(available, mCapacity - offset);
+	}
+
+	synchronized int getReadOffset(int reader) {
+		return (int) (mReadPos[reader] % mCapacity);
+	}
+
+	/**
+	 * 读取者读完从getReadOffset开始的length字节后调用，所有读取者都读过的部分腾出来给写入者
+	 */
+	synchronized void commitRead(int reader, int length) {
+		mReadPos[reader] += length;
+		notifyAll();
+	}
+
+	/**
+	 * @return 还有读取者没读过的数据长度
+	 */
+	synchronized long getOccupancy() {
+		long minReadPos = mWritePos;
+		for (long readPos : mReadPos) {
+			minReadPos = Math.min(minReadPos, readPos);
+		}
+		return mWritePos - minReadPos;
+	}
+
+	/**
+	 * @return 当前的占用情况，用于调整缓冲区大小
+	 */
+	synchronized Stats getStats() {
+		Stats stats = new Stats();
+		stats.capacity = mCapacity;
+		stats.occupancy = getOccupancy();
+		stats.peakOccupancy = mPeakOccupancy;
+		stats.writtenBytes = mWritePos;
+		stats.fullWaitCount = mFullWaitCount;
+		stats.fullWaitMillis = mFullWaitNanos / 1000000;
+		stats.emptyWaitCount = mEmptyWaitCount.clone();
+		stats.peakLag = mPeakLag.clone();
+		return stats;
+	}
+
+	static class Stats {
+		long capacity;
+		long occupancy;
+		long peakOccupancy;
+		long writtenBytes;
+		// 写入者因为缓冲区满等待的次数和总时长
+		long fullWaitCount;
+		long fullWaitMillis;
+		// 每个读取者因为没有新数据等待的次数
+		long[] emptyWaitCount;
+		// 每个读取者落后写入者的最大长度
+		long[] peakLag;
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("容量: ").append(capacity).append(" 占用: ").append(occupancy).append(" 占用峰值: ").append(peakOccupancy)
+					.append(" 写入: ").append(writtenBytes).append(" 满等待次数: ").append(fullWaitCount)
+					.append(" 满等待总时长: ").append(fullWaitMillis);
+			for (int i = 0; i < peakLag.length; i++) {
+				sb.append(" 读取者").append(i).append(" 空等待次数: ").append(emptyWaitCount[i]).append(" 最大落后: ").append(peakLag[i]);
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,449 @@
+package com.cqh.android.media;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+
+/**
+ * 分段并行下载缓存文件中缺失的部分，下载的数据直接插入缓存文件
+ * 播放位置所在的缺失区间由请求线程自己下载并同时返回给播放器，优先级最高；
+ * 每个下载线程各用一个有边界的连接，总是取播放位置之后、离播放位置最近的还没人下载的缺失区间，每段最多SEGMENT_SIZE
+ * 播放位置越过正在下载的分段时，该分段写入已下载的部分后放弃，下载线程改去下载新的播放位置之后的分段
+ * 网络出错时等待一会儿从已缓存的位置继续，连续出错MAX_RETRY_COUNT次后该下载线程才结束；每个下载线程的缓冲区在各分段间复用，
+ * 读完的连接回到长连接池，下一个分段的请求复用它
+ * 只预读到播放位置之后的预读范围为止，到达后暂停，播放位置前进后继续；播放器缓冲区满了不再读取时也照常预读，
+ * 这样网络好的时候多缓存一些，之后信号不好也不容易卡顿
+ */
+class MediaSegmentDownloader {
+	private static final String TAG = MediaSegmentDownloader.class.getSimpleName();
+
+	/** 默认的并行下载线程数，不包括请求线程自己的连接 */
+	static final int DEFAULT_CONNECTION_COUNT = 3;
+	/** 每个分段的最大长度 */
+	static final int SEGMENT_SIZE = 1024 * 1024;
+	/** 分段下载出错后最多连续重试几次，都失败后该下载线程才结束 */
+	static final int MAX_RETRY_COUNT = 3;
+	/** 第一次重试前等待的时间，之后每次加倍 */
+	static final int RETRY_DELAY = 1000;
+
+	private static final int RESULT_DONE = 0;
+	private static final int RESULT_RETRY = 1;
+	private static final int RESULT_FAILED = 2;
+
+	/** 默认的预读长度，不知道媒体时长时使用 */
+	static final long DEFAULT_READ_AHEAD_BYTES = 8 * 1024 * 1024;
+	/** 默认的预读时长 */
+	static final int DEFAULT_READ_AHEAD_TIME = 2 * 60 * 1000;
+
+	private static int mConnectionCount = DEFAULT_CONNECTION_COUNT;
+	private static long mReadAheadBytes = DEFAULT_READ_AHEAD_BYTES;
+	private static int mReadAheadTime = DEFAULT_READ_AHEAD_TIME;
+
+	private final MediaCacheFile mCacheFile;
+	private final URL mUrl;
+	private final long mFileSize;
+	// 正在下载的分段，每两个元素为一个[start, end]，按start排序
+	private final ArrayList<Long> mSegments = new ArrayList<Long>();
+	private boolean mRunning;
+	// 播放位置，和请求线程正在下载的区间的结束位置（没有则为-1）
+	private long mPlayhead;
+	private long mForegroundEnd = -1;
+	// 媒体时长，毫秒，0表示还不知道
+	private int mDuration;
+	private boolean mPaused;
+
+	/**
+	 * 设置并行下载线程数，只对之后开始的请求生效，0表示不并行下载
+	 */
+	static synchronized void setConnectionCount(int connectionCount) {
+		mConnectionCount = Math.max(connectionCount, 0);
+	}
+
+	static synchronized int getConnectionCount() {
+		return mConnectionCount;
+	}
+
+	/**
+	 * 设置预读范围，只对之后开始的请求生效
+	 *
+	 * @param bytes 播放位置之后最多预读多少字节，不知道媒体时长或者readAheadTime为0时使用
+	 * @param time 播放位置之后最多预读多少毫秒的数据，按文件长度和媒体时长换算成字节，0表示只按字节计算
+	 */
+	static synchronized void setReadAheadHorizon(long bytes, int time) {
+		mReadAheadBytes = Math.max(bytes, 0);
+		mReadAheadTime = Math.max(time, 0);
+	}
+
+	static synchronized long getReadAheadBytes() {
+		return mReadAheadBytes;
+	}
+
+	static synchronized int getReadAheadTime() {
+		return mReadAheadTime;
+	}
+
+	MediaSegmentDownloader(MediaCacheFile cacheFile, URL url) {
+		this(cacheFile, url, cacheFile.getFileSize());
+	}
+
+	MediaSegmentDownloader(MediaCacheFile cacheFile, URL url, long fileSize) {
+		mCacheFile = cacheFile;
+		mUrl = url;
+		mFileSize = fileSize;
+	}
+
+	synchronized void start() {
+		if (mRunning) {
+			return;
+		}
+		mRunning = true;
+		int connectionCount = getConnectionCount();
+		for (int i = 0; i < connectionCount; i++) {
+			new DownloadThread().start();
+		}
+	}
+
+	/**
+	 * 结束所有下载线程，正在下载的分段写入已下载的部分后结束，不等待
+	 */
+	synchronized void stop() {
+		mRunning = false;
+		notifyAll();
+	}
+
+	/**
+	 * 请求线程的读取位置变化时调用
+	 *
+	 * @param playhead 播放位置
+	 * @param foregroundEnd 请求线程自己正在下载的区间的结束位置（包含），没有则为-1，下载线程不会下载这个区间
+	 */
+	synchronized void setPlayhead(long playhead, long foregroundEnd) {
+		if (playhead != mPlayhead || foregroundEnd != mForegroundEnd) {
+			mPlayhead = playhead;
+			mForegroundEnd = foregroundEnd;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * 请求线程要从position下载missingLength时调用，把它能下载的部分登记为请求线程的区间，下载线程不会再下载
+	 * 请求线程和下载线程一样每次最多登记SEGMENT_SIZE，之后的缺失区间留给下载线程并行下载
+	 *
+	 * @return 请求线程可以下载的长度，最多SEGMENT_SIZE，到下一个正在并行下载的分段为止；
+	 * position正在被下载线程下载时返回0，请求线程应等待
+	 */
+	synchronized long reserveForeground(long position, long missingLength) {
+		mPlayhead = position;
+		if (findSegment(position) >= 0) {
+			mForegroundEnd = -1;
+			notifyAll();
+			return 0;
+		}
+		long length = Math.min(Math.min(missingLength, SEGMENT_SIZE), getNextSegmentStart(position) - position);
+		mForegroundEnd = position + length - 1;
+		notifyAll();
+		return length;
+	}
+
+	/**
+	 * 播放器知道媒体时长后调用，之后按预读时长换算预读范围
+	 */
+	synchronized void setDuration(int duration) {
+		mDuration = Math.max(duration, 0);
+		notifyAll();
+	}
+
+	/**
+	 * @return 只预读这个位置之前的数据
+	 */
+	synchronized long getLimit() {
+		long horizon;
+		int readAheadTime = getReadAheadTime();
+		if (readAheadTime > 0 && mDuration > 0) {
+			horizon = (long) ((double) mFileSize * readAheadTime / mDuration);
+		} else {
+			horizon = getReadAheadBytes();
+		}
+		return Math.min(mPlayhead + horizon, mFileSize);
+	}
+
+	/**
+	 * @return position之后第一个正在下载的分段的开始位置，没有则返回文件长度
+	 */
+	synchronized long getNextSegmentStart(long position) {
+		for (int i = 0; i < mSegments.size(); i += 2) {
+			if (mSegments.get(i) >= position) {
+				return mSegments.get(i);
+			}
+		}
+		return mFileSize;
+	}
+
+	/**
+	 * 等待下载线程把数据写入缓存文件，或者正在下载的分段结束
+	 */
+	synchronized void awaitProgress(long timeout) throws InterruptedException {
+		if (mRunning) {
+			wait(timeout);
+		}
+	}
+
+	/**
+	 * 取下一个要下载的分段，没有时等待
+	 *
+	 * @return [start, end]，停止后返回null
+	 */
+	private synchronized long[] nextSegment() throws InterruptedException {
+		while (mRunning) {
+			long[] segment = reserveSegment();
+			if (segment != null) {
+				return segment;
+			}
+			wait();
+		}
+		return null;
+	}
+
+	/**
+	 * 登记下一个要下载的分段：播放位置（请求线程正在下载的区间之后）之后、预读范围之内第一个还没缓存、也没人在下载的区间
+	 *
+	 * @return [start, end]，预读范围内没有要下载的区间时返回null
+	 */
+	synchronized long[] reserveSegment() {
+		long limit = getLimit();
+		long position = Math.max(mPlayhead, mForegroundEnd + 1);
+		if (position == mPlayhead && findSegment(position) < 0 && getCachedLength(position) == 0) {
+			// 播放位置缺失的数据留给请求线程下载，和reserveForeground一样最多SEGMENT_SIZE
+			position += Math.min(Math.max(getNeedDownloadLength(position), 0), SEGMENT_SIZE);
+		}
+		while (position < limit) {
+			long cachedLength = getCachedLength(position);
+			if (cachedLength > 0) {
+				position += cachedLength;
+				continue;
+			}
+			int i = findSegment(position);
+			if (i >= 0) {
+				position = mSegments.get(i + 1) + 1;
+				continue;
+			}
+			long missingLength = getNeedDownloadLength(position);
+			if (missingLength <= 0) {
+				break;
+			}
+			long end = Math.min(position + Math.min(missingLength, SEGMENT_SIZE), Math.min(limit, getNextSegmentStart(position))) - 1;
+			addSegment(position, end);
+			if (mPaused) {
+				mPaused = false;
+				Log.d(TAG, "播放位置前进，继续预读 " + mPlayhead + "-" + limit);
+			}
+			return new long[] { position, end };
+		}
+		if (!mPaused && mSegments.isEmpty()) {
+			mPaused = true;
+			Log.d(TAG, "预读范围内已全部缓存，暂停预读 " + mPlayhead + "-" + limit);
+		}
+		return null;
+	}
+
+	long getCachedLength(long position) {
+		return mCacheFile.getCachedLength(position);
+	}
+
+	long getNeedDownloadLength(long position) {
+		return mCacheFile.getNeedDownloadLength(position);
+	}
+
+	/**
+	 * @return 正在下载、包含position的分段的下标，没有则返回-1
+	 */
+	private int findSegment(long position) {
+		for (int i = 0; i < mSegments.size(); i += 2) {
+			if (position >= mSegments.get(i) && position <= mSegments.get(i + 1)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void addSegment(long start, long end) {
+		int i = 0;
+		while (i < mSegments.size() && mSegments.get(i) < start) {
+			i += 2;
+		}
+		mSegments.add(i, end);
+		mSegments.add(i, start);
+	}
+
+	private synchronized void removeSegment(long start) {
+		for (int i = 0; i < mSegments.size(); i += 2) {
+			if (mSegments.get(i) == start) {
+				mSegments.remove(i + 1);
+				mSegments.remove(i);
+				break;
+			}
+		}
+		notifyAll();
+	}
+
+	private synchronized void onInserted() {
+		notifyAll();
+	}
+
+	/**
+	 * @return 分段已经在播放位置之前、超出预读范围或者已经停止，不需要继续下载
+	 */
+	private synchronized boolean isCancelled(long start, long end) {
+		return !mRunning || end < mPlayhead || start >= getLimit();
+	}
+
+	/**
+	 * 重试前等待delay，期间停止时立即返回
+	 *
+	 * @return 已停止时返回false
+	 */
+	private synchronized boolean awaitRetry(long delay) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + delay;
+		long remain = delay;
+		while (mRunning && remain > 0) {
+			wait(remain);
+			remain = deadline - System.currentTimeMillis();
+		}
+		return mRunning;
+	}
+
+	private class DownloadThread extends Thread {
+		// 各分段共用的缓冲区，线程结束时归还
+		private byte[] mBuff;
+
+		@Override
+		public void run() {
+			try {
+				long[] segment;
+				while ((segment = nextSegment()) != null) {
+					try {
+						if (!downloadWithRetry(segment[0], segment[1])) {
+							break;
+						}
+					} finally {
+						removeSegment(segment[0]);
+					}
+				}
+			} catch (InterruptedException e) {
+				// 结束
+			} finally {
+				MediaBufferPool.release(mBuff);
+			}
+		}
+
+		/**
+		 * 网络出错时等待一会儿，从分段中已缓存的部分之后继续下载，等待时间每次加倍
+		 *
+		 * @return 源站不支持分段下载、文件已变化、写入缓存失败或者连续出错超过MAX_RETRY_COUNT次时返回false，该下载线程不再继续下载
+		 */
+		private boolean downloadWithRetry(long start, long end) throws InterruptedException {
+			long delay = RETRY_DELAY;
+			for (int retryCount = 0; ; retryCount++) {
+				long position = start + Math.min(getCachedLength(start), end - start + 1);
+				if (position > end) {
+					return true;
+				}
+				int result = download(start, position, end);
+				if (result != RESULT_RETRY) {
+					return result == RESULT_DONE;
+				}
+				if (retryCount >= MAX_RETRY_COUNT) {
+					Log.e(TAG, "分段下载连续出错" + (retryCount + 1) + "次，该下载线程结束 " + start + "-" + end);
+					return false;
+				}
+				// 停止了，或者等待期间分段已经不需要了，都改去取下一个分段
+				if (!awaitRetry(delay) || isCancelled(start, end)) {
+					return true;
+				}
+				Log.d(TAG, "分段下载重试 " + position + "-" + end);
+				delay *= 2;
+			}
+		}
+
+		/**
+		 * 下载分段中position到end（包含end）的部分
+		 *
+		 * @param start 分段的开始位置，用于判断分段是否已经不需要
+		 *
+		 * @return RESULT_DONE：下载完或者分段已经不需要；RESULT_RETRY：网络出错，可以重试；RESULT_FAILED：不能继续下载
+		 */
+		private int download(long start, long position, long end) {
+			HttpURLConnection connection = null;
+			InputStream data = null;
+			long dataPos = position;
+			long dataEnd = -1;
+			int hasDownloadLength = 0;
+			try {
+				connection = MediaUpstreamConnections.open(mUrl, position, end);
+				long connectStart = System.nanoTime();
+				connection.connect();
+				int code = connection.getResponseCode();
+				MediaBandwidthEstimator.onFirstByte(mUrl, System.nanoTime() - connectStart);
+				if (code != HttpURLConnection.HTTP_PARTIAL || HttpUtils.getContentSize(connection) != mFileSize) {
+					Log.e(TAG, "源站不支持分段下载或文件长度不一致，停止分段下载 " + code);
+					return RESULT_FAILED;
+				}
+				dataEnd = HttpUtils.getRangeEnd(connection);
+				data = connection.getInputStream();
+				int readLength = MediaTransferTuner.getReadLength();
+				int flushLength = MediaTransferTuner.getFlushLength();
+				if (mBuff == null || mBuff.length < flushLength) {
+					MediaBufferPool.release(mBuff);
+					mBuff = MediaBufferPool.acquire(flushLength);
+				}
+				byte[] buff = mBuff;
+				Log.d(TAG, "分段下载 " + position + "-" + end);
+				while (dataPos <= end) {
+					boolean cancelled = isCancelled(start, end);
+					int readBytes = -1;
+					if (!cancelled) {
+						long readStart = System.nanoTime();
+						readBytes = data.read(buff, hasDownloadLength, (int) Math.min(end - dataPos + 1, Math.min(readLength, buff.length - hasDownloadLength)));
+						MediaBandwidthEstimator.onNetworkRead(mUrl, readBytes, System.nanoTime() - readStart);
+						if (readBytes != -1) {
+							dataPos += readBytes;
+							hasDownloadLength += readBytes;
+						}
+					}
+					if (cancelled || readBytes == -1 || hasDownloadLength + readLength > flushLength || dataPos > end) {
+						long writeStart = System.nanoTime();
+						if (hasDownloadLength > 0 && !mCacheFile.insert(dataPos - hasDownloadLength, buff, hasDownloadLength)) {
+							return RESULT_FAILED;
+						}
+						MediaTransferTuner.onCacheWrite(hasDownloadLength, System.nanoTime() - writeStart);
+						hasDownloadLength = 0;
+						onInserted();
+						if (cancelled) {
+							break;
+						}
+						if (readBytes == -1) {
+							// 还没读到end连接就结束了，和网络出错一样重试剩下的部分
+							return RESULT_RETRY;
+						}
+					}
+				}
+				return RESULT_DONE;
+			} catch (IOException e) {
+				Log.e(TAG, "分段下载出错，稍后重试 " + dataPos + "-" + end, e);
+				if (hasDownloadLength > 0) {
+					mCacheFile.insert(dataPos - hasDownloadLength, mBuff, hasDownloadLength);
+					onInserted();
+				}
+				return RESULT_RETRY;
+			} finally {
+				if (connection != null) {
+					MediaUpstreamConnections.release(connection, data, dataEnd == -1 ? -1 : dataEnd - dataPos + 1);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.cqh.android.media;
+
+/**
+ * 按实测的网络带宽和缓存写入耗时调整每次从网络读取的长度，和积累多少数据再写入缓存文件
+ * 网络带宽取MediaBandwidthEstimator所有源站合在一起的估计，缓存写入耗时在这里统计
+ * 网络快时每次多读、少写几次；网络慢时尽早写入，不在内存里积压太多还没保存的数据；
+ * 每次写入的固定开销（加锁、记日志等）较大时积累更多数据再写入，让写入耗时不超过下载耗时的1/WRITE_COST_RATIO
+ */
+class MediaTransferTuner {
+	/** 每次从网络读取的最小长度 */
+	static final int MIN_READ_LENGTH = 8 * 1024;
+	/** 每次从网络读取的最大长度 */
+	static final int MAX_READ_LENGTH = 256 * 1024;
+	/** 还没有测量结果时每次从网络读取的长度 */
+	static final int DEFAULT_READ_LENGTH = 40 * 1024;
+	/** 积累多少数据再写入缓存文件的下限 */
+	static final int MIN_FLUSH_LENGTH = 64 * 1024;
+	/** 每次读取大约等待网络多少毫秒的数据 */
+	static final int READ_TIME_TARGET = 50;
+	/** 积累的数据最多是多少毫秒内下载的 */
+	static final int FLUSH_TIME_TARGET = 1000;
+	/** 下载耗时至少是写入固定开销的多少倍 */
+	static final int WRITE_COST_RATIO = 10;
+	/** 新的测量结果所占的权重 */
+	static final double EWMA_WEIGHT = 0.3;
+
+	// 写入耗时 = 固定开销 + 长度 * 每字节耗时，按指数衰减的加权最小二乘估计
+	private static double mWriteCount, mWriteSumX, mWriteSumY, mWriteSumXX, mWriteSumXY;
+	private static double mWriteOverhead;
+
+	/**
+	 * 记录一次写入缓存文件的长度和耗时
+	 */
+	static synchronized void onCacheWrite(long bytes, long nanos) {
+		if (bytes <= 0 || nanos <= 0) {
+			return;
+		}
+		double x = bytes;
+		double y = nanos / 1000000.0;
+		double decay = 1 - EWMA_WEIGHT;
+		mWriteCount = mWriteCount * decay + 1;
+		mWriteSumX = mWriteSumX * decay + x;
+		mWriteSumY = mWriteSumY * decay + y;
+		mWriteSumXX = mWriteSumXX * decay + x * x;
+		mWriteSumXY = mWriteSumXY * decay + x * y;
+		double denominator = mWriteCount * mWriteSumXX - mWriteSumX * mWriteSumX;
+		// 写入长度都差不多时无法区分固定开销和按长度的耗时，保留原来的估计
+		if (denominator > mWriteSumX * mWriteSumX * 0.01) {
+			double perByte = Math.max((mWriteCount * mWriteSumXY - mWriteSumX * mWriteSumY) / denominator, 0);
+			mWriteOverhead = Math.max((mWriteSumY - perByte * mWriteSumX) / mWriteCount, 0);
+		} else if (mWriteOverhead == 0) {
+			// 还没有估计时，把较小的一次写入耗时都当作固定开销，偏大只会让写入少几次
+			mWriteOverhead = Math.min(y, mWriteSumY / mWriteCount);
+		}
+	}
+
+	/**
+	 * @return 每次从网络读取的长度
+	 */
+	static synchronized int getReadLength() {
+		double bandwidth = getBandwidth();
+		if (bandwidth == 0) {
+			return DEFAULT_READ_LENGTH;
+		}
+		return clamp((long) (bandwidth * READ_TIME_TARGET), MIN_READ_LENGTH, MAX_READ_LENGTH);
+	}
+
+	/**
+	 * @return 积累多少数据后写入缓存文件
+	 */
+	static synchronized int getFlushLength() {
+		double bandwidth = getBandwidth();
+		if (bandwidth == 0) {
+			return MediaRequestThread.RW_BUFF_MIN_LENGTH;
+		}
+		double flushLength = Math.max(bandwidth * FLUSH_TIME_TARGET, bandwidth * mWriteOverhead * WRITE_COST_RATIO);
+		return clamp((long) flushLength, MIN_FLUSH_LENGTH, MediaRequestThread.RW_BUFF_MAX_LENGTH);
+	}
+
+	/**
+	 * @return 带宽（字节/秒）和写入固定开销（毫秒），用于日志
+	 */
+	static synchronized String getStats() {
+		return "带宽: " + MediaBandwidthEstimator.getBandwidth() + " 写入固定开销: " + String.format("%.2f", mWriteOverhead)
+				+ " 读取长度: " + getReadLength() + " 写入长度: " + getFlushLength();
+	}
+
+	/**
+	 * @return 网络带宽，字节/毫秒，0表示还没有测量结果
+	 */
+	private static double getBandwidth() {
+		long bandwidth = MediaBandwidthEstimator.getBandwidth();
+		return bandwidth <= 0 ? 0 : bandwidth / 1000.0;
+	}
+
+	private static int clamp(long value, int min, int max) {
+		return (int) Math.max(Math.min(value, max), min);
+	}
+}
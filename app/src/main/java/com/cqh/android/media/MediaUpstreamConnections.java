@@ -0,0 +1,113 @@
+package com.cqh.android.media;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 请求线程和预缓存线程向源站发出的请求都从这里创建，让同一个源站的连接在多次Range请求之间复用
+ * HttpURLConnection自带按源站管理的长连接池，响应内容读完并关闭后连接回到池里；连接池按系统默认设置，这里不改全局属性，
+ * 不影响应用里其他的网络请求
+ * 所以请求尽量带结束位置，只读需要的部分；剩下不多的在后台读完丢弃，连接仍可复用；剩下太多或者不知道剩多少的直接断开，
+ * 不为复用浪费流量，也不让请求线程等待
+ */
+class MediaUpstreamConnections {
+	private static final String TAG = MediaUpstreamConnections.class.getSimpleName();
+
+	/** 放弃读取时剩下的数据不超过这个长度就读完丢弃，让连接可以复用 */
+	static final int DRAIN_LIMIT = 64 * 1024;
+	static final int CONNECT_TIMEOUT = 10000;
+	static final int READ_TIMEOUT = 30000;
+
+	// 在后台读完剩下的响应内容，不占用请求线程
+	private static ExecutorService mDrainExecutor = Executors.newSingleThreadExecutor();
+
+	/**
+	 * 创建请求start到end（包含end）的连接，还没有连接
+	 *
+	 * @param end -1表示到文件末尾；带结束位置的请求读完后连接可以复用
+	 */
+	static HttpURLConnection open(URL url, long start, long end) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		// 取消gzip数据压缩，避免内容长度不准确
+		connection.setRequestProperty("Accept-Encoding", "identity");
+		connection.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? String.valueOf(end) : ""));
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		return connection;
+	}
+
+	/**
+	 * 用完连接后调用，代替disconnect；disconnect会关闭底层连接，无法复用
+	 * 剩下的响应内容不超过DRAIN_LIMIT时交给后台线程读完再关闭，调用线程不等待
+	 *
+	 * @param data 连接的响应内容，没有读取过时为null
+	 * @param remaining 响应内容还剩多少没有读，不知道时为-1
+	 */
+	static void release(final HttpURLConnection connection, final InputStream data, long remaining) {
+		if (data == null || remaining < 0 || remaining > DRAIN_LIMIT) {
+			connection.disconnect();
+			return;
+		}
+		if (remaining == 0) {
+			close(connection, data);
+			return;
+		}
+		mDrainExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				drain(connection, data);
+			}
+		});
+	}
+
+	/**
+	 * 等待已经交给后台的丢弃都完成
+	 */
+	static void awaitDrained() throws InterruptedException {
+		try {
+			mDrainExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (ExecutionException e) {
+			// 空任务不会出错
+		}
+	}
+
+	private static void drain(HttpURLConnection connection, InputStream data) {
+		try {
+			byte[] buffer = new byte[8 * 1024];
+			long drained = 0;
+			int readBytes;
+			while (drained <= DRAIN_LIMIT && (readBytes = data.read(buffer)) != -1) {
+				drained += readBytes;
+			}
+			if (drained <= DRAIN_LIMIT) {
+				close(connection, data);
+				return;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "丢弃剩下的响应内容时出错，断开连接", e);
+		}
+		connection.disconnect();
+	}
+
+	/**
+	 * 响应内容已读完，关闭后连接回到长连接池
+	 */
+	private static void close(HttpURLConnection connection, InputStream data) {
+		try {
+			data.close();
+		} catch (IOException e) {
+			connection.disconnect();
+		}
+	}
+}
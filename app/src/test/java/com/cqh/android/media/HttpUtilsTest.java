@@ -0,0 +1,138 @@
+package com.cqh.android.media;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用本地的源站提供超过2GB的文件，检查响应头的解析和返回给播放器的响应头
+ * 源站的内容不需要真的存在，位置pos的字节为pos的低8位，每次最多返回BODY_LIMIT字节后断开
+ */
+public class HttpUtilsTest {
+	private static final long FILE_SIZE = 3L * 1024 * 1024 * 1024 + 17;
+	private static final int BODY_LIMIT = 64 * 1024;
+
+	private ServerSocket mServer;
+	private Thread mServerThread;
+	private volatile boolean mPartialSupported = true;
+
+	@Before
+	public void startOrigin() throws IOException {
+		mServer = new ServerSocket(0);
+		mServerThread = new Thread() {
+			@Override
+			public void run() {
+				while (!mServer.isClosed()) {
+					try {
+						serve(mServer.accept());
+					} catch (IOException e) {
+						// 关闭源站或客户端提前断开
+					}
+				}
+			}
+		};
+		mServerThread.start();
+	}
+
+	@After
+	public void stopOrigin() throws Exception {
+		mServer.close();
+		mServerThread.join();
+	}
+
+	private void serve(Socket socket) throws IOException {
+		try {
+			InputStream in = socket.getInputStream();
+			StringBuilder request = new StringBuilder();
+			int b;
+			while ((b = in.read()) != -1) {
+				request.append((char) b);
+				if (request.length() >= 4 && request.substring(request.length() - 4).equals("\r\n\r\n")) {
+					break;
+				}
+			}
+			long start = 0;
+			int rangeIndex = request.indexOf("Range: bytes=");
+			if (rangeIndex >= 0) {
+				start = Long.parseLong(request.substring(rangeIndex + 13, request.indexOf("-", rangeIndex + 13)));
+			}
+			StringBuilder header = new StringBuilder();
+			if (mPartialSupported) {
+				header.append("HTTP/1.1 206 Partial Content\r\n");
+				header.append("Content-Range: bytes ").append(start).append("-").append(FILE_SIZE - 1).append("/").append(FILE_SIZE).append("\r\n");
+			} else {
+				start = 0;
+				header.append("HTTP/1.1 200 OK\r\n");
+			}
+			header.append("Content-Length: ").append(FILE_SIZE - start).append("\r\n");
+			header.append("Connection: close\r\n\r\n");
+			OutputStream out = socket.getOutputStream();
+			out.write(header.toString().getBytes("US-ASCII"));
+			byte[] body = new byte[(int) Math.min(BODY_LIMIT, FILE_SIZE - start)];
+			for (int i = 0; i < body.length; i++) {
+				body[i] = (byte) (start + i);
+			}
+			out.write(body);
+			out.flush();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private HttpURLConnection openConnection(long rangeStart) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + mServer.getLocalPort() + "/media.mp4").openConnection();
+		connection.setRequestProperty("Accept-Encoding", "identity");
+		connection.setRequestProperty("Range", "bytes=" + rangeStart + "-");
+		return connection;
+	}
+
+	@Test
+	public void contentSizeFromContentRange() throws IOException {
+		long rangeStart = 3000000000L;
+		HttpURLConnection connection = openConnection(rangeStart);
+		try {
+			assertEquals(HttpURLConnection.HTTP_PARTIAL, connection.getResponseCode());
+			assertEquals(FILE_SIZE, HttpUtils.getContentSize(connection));
+			assertEquals(rangeStart, HttpUtils.getRangeStart(connection));
+			InputStream data = connection.getInputStream();
+			for (int i = 0; i < 16; i++) {
+				assertEquals((byte) (rangeStart + i), (byte) data.read());
+			}
+			data.close();
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	@Test
+	public void contentSizeFromContentLength() throws IOException {
+		mPartialSupported = false;
+		HttpURLConnection connection = openConnection(0);
+		try {
+			assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+			assertEquals(FILE_SIZE, HttpUtils.getContentSize(connection));
+			connection.getInputStream().close();
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	@Test
+	public void responseHeaderBeyond2GB() {
+		long rangeStart = 2500000000L;
+		String header = MediaRequestThread.genResponseHeader(rangeStart, FILE_SIZE - 1, FILE_SIZE);
+		assertTrue(header, header.contains("Content-Length: " + (FILE_SIZE - rangeStart) + "\n"));
+		assertTrue(header, header.contains("Content-Range: bytes " + rangeStart + "-" + (FILE_SIZE - 1) + "/" + FILE_SIZE + "\n"));
+	}
+}
@@ -0,0 +1,103 @@
+package com.cqh.android.media;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用构造的读取长度和耗时检查带宽和首字节时间的估计，各源站分开统计
+ */
+public class MediaBandwidthEstimatorTest {
+	private static final long MILLIS = 1000000;
+
+	private URL mUrlA;
+	private URL mUrlB;
+
+	@Before
+	public void setUp() throws Exception {
+		MediaBandwidthEstimator.reset();
+		mUrlA = new URL("http://a.example.com/1.mp3");
+		mUrlB = new URL("http://b.example.com:8080/2.mp3");
+	}
+
+	@Test
+	public void unknownBeforeFirstSample() {
+		assertEquals(-1, MediaBandwidthEstimator.getBandwidth());
+		assertEquals(-1, MediaBandwidthEstimator.getBandwidth("a.example.com"));
+		assertEquals(-1, MediaBandwidthEstimator.getTimeToFirstByte("a.example.com"));
+		assertNull(MediaBandwidthEstimator.getEstimate("a.example.com"));
+		// 不够一个样本的读取不产生估计
+		MediaBandwidthEstimator.onNetworkRead(mUrlA, 1024, MILLIS);
+		assertEquals(-1, MediaBandwidthEstimator.getBandwidth("a.example.com"));
+		assertEquals(1024, MediaBandwidthEstimator.getEstimate("a.example.com").totalBytes);
+	}
+
+	@Test
+	public void smallReadsAreMergedIntoSamples() {
+		// 每次1KB耗时1毫秒，即1MB/秒，凑够一个样本后得到估计
+		for (int i = 0; i < MediaBandwidthEstimator.SAMPLE_BYTES / 1024; i++) {
+			MediaBandwidthEstimator.onNetworkRead(mUrlA, 1024, MILLIS);
+		}
+		assertEquals(1024 * 1000, MediaBandwidthEstimator.getBandwidth("a.example.com"));
+		MediaBandwidthEstimator.Estimate estimate = MediaBandwidthEstimator.getEstimate("a.example.com");
+		assertEquals(1, estimate.sampleCount);
+		assertEquals(1024 * 1000, estimate.windowBandwidth);
+	}
+
+	@Test
+	public void ewmaFollowsChangesFasterThanWindow() {
+		int sample = MediaBandwidthEstimator.SAMPLE_BYTES;
+		// 1MB/秒的样本填满窗口
+		for (int i = 0; i < MediaBandwidthEstimator.WINDOW_SIZE; i++) {
+			MediaBandwidthEstimator.onNetworkRead(mUrlA, sample, sample / 1024 * MILLIS);
+		}
+		// 带宽降到1/4
+		for (int i = 0; i < 4; i++) {
+			MediaBandwidthEstimator.onNetworkRead(mUrlA, sample, sample / 256 * MILLIS);
+		}
+		MediaBandwidthEstimator.Estimate estimate = MediaBandwidthEstimator.getEstimate("a.example.com");
+		assertTrue(estimate.bandwidth < estimate.windowBandwidth);
+		assertTrue(estimate.bandwidth > 256 * 1000);
+		assertTrue(estimate.windowBandwidth < 1024 * 1000);
+	}
+
+	@Test
+	public void hostsAreTrackedSeparately() {
+		int sample = MediaBandwidthEstimator.SAMPLE_BYTES;
+		MediaBandwidthEstimator.onNetworkRead(mUrlA, sample, sample / 1024 * MILLIS);
+		MediaBandwidthEstimator.onNetworkRead(mUrlB, sample, sample / 256 * MILLIS);
+		MediaBandwidthEstimator.onFirstByte(mUrlA, 50 * MILLIS);
+		MediaBandwidthEstimator.onFirstByte(mUrlB, 400 * MILLIS);
+		assertEquals(1024 * 1000, MediaBandwidthEstimator.getBandwidth("a.example.com"));
+		assertEquals(256 * 1000, MediaBandwidthEstimator.getBandwidth("b.example.com"));
+		assertEquals(50, MediaBandwidthEstimator.getTimeToFirstByte("a.example.com"));
+		assertEquals(400, MediaBandwidthEstimator.getTimeToFirstByte("b.example.com"));
+		// 合在一起的估计在两者之间
+		long bandwidth = MediaBandwidthEstimator.getBandwidth();
+		assertTrue(bandwidth > 256 * 1000 && bandwidth < 1024 * 1000);
+		long timeToFirstByte = MediaBandwidthEstimator.getTimeToFirstByte();
+		assertTrue(timeToFirstByte > 50 && timeToFirstByte < 400);
+	}
+
+	@Test
+	public void timeToFirstByteIsSmoothed() {
+		MediaBandwidthEstimator.onFirstByte(mUrlA, 100 * MILLIS);
+		MediaBandwidthEstimator.onFirstByte(mUrlA, 200 * MILLIS);
+		assertEquals(130, MediaBandwidthEstimator.getTimeToFirstByte("a.example.com"));
+		assertEquals(2, MediaBandwidthEstimator.getEstimate("a.example.com").firstByteCount);
+	}
+
+	@Test
+	public void leastRecentHostIsDropped() throws Exception {
+		for (int i = 0; i <= MediaBandwidthEstimator.MAX_HOSTS; i++) {
+			MediaBandwidthEstimator.onFirstByte(new URL("http://host" + i + ".example.com/1.mp3"), MILLIS);
+		}
+		assertNull(MediaBandwidthEstimator.getEstimate("host0.example.com"));
+		assertEquals(1, MediaBandwidthEstimator.getTimeToFirstByte("host" + MediaBandwidthEstimator.MAX_HOSTS + ".example.com"));
+	}
+}
@@ -0,0 +1,56 @@
+package com.cqh.android.media;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 缓冲区池用完时，播放路径上的acquireNow不等待；下载管道的环形缓冲区从剩余的空间里分配
+ */
+public class MediaBufferPoolTest {
+	private static final int MB = 1024 * 1024;
+
+	@Before
+	public void setUp() {
+		MediaBufferPool.setMaxPoolSize(4 * MB);
+	}
+
+	@After
+	public void tearDown() {
+		MediaBufferPool.setMaxPoolSize(MediaBufferPool.DEFAULT_MAX_POOL_SIZE);
+	}
+
+	@Test
+	public void acquireNowDoesNotWaitWhenPoolIsUsedUp() {
+		byte[] held = MediaBufferPool.acquire(4 * MB);
+		try {
+			assertEquals(0, MediaBufferPool.getAvailableBytes());
+			long start = System.currentTimeMillis();
+			byte[] buffer = MediaBufferPool.acquireNow(MB);
+			assertTrue(System.currentTimeMillis() - start < MediaBufferPool.ACQUIRE_TIMEOUT / 2);
+			assertEquals(MB, buffer.length);
+			// 超出上限分配的不计入池
+			MediaBufferPool.release(buffer);
+			assertEquals(0, MediaBufferPool.getAvailableBytes());
+		} finally {
+			MediaBufferPool.release(held);
+		}
+		assertEquals(4 * MB, MediaBufferPool.getAvailableBytes());
+	}
+
+	@Test
+	public void ringCapacityFitsRemainingBudget() {
+		int flushLength = 4 * MB;
+		// 空间足够时放下两次写入
+		assertEquals(8 * MB, MediaDownloadPipeline.getCapacity(flushLength, 16 * MB));
+		// 只剩下一部分时按剩余的空间向下取2的幂，并给写入线程留出一次写入
+		assertEquals(4 * MB, MediaDownloadPipeline.getCapacity(flushLength, 11 * MB));
+		assertEquals(2 * MB, MediaDownloadPipeline.getCapacity(flushLength, 7 * MB));
+		// 剩余空间不够时不低于最小容量
+		assertEquals(MediaDownloadPipeline.MIN_CAPACITY, MediaDownloadPipeline.getCapacity(flushLength, 0));
+		assertEquals(MediaDownloadPipeline.MIN_CAPACITY, MediaDownloadPipeline.getCapacity(64 * 1024, 16 * MB));
+	}
+}
@@ -0,0 +1,119 @@
+package com.cqh.android.media;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 超过2GB的文件，缓存位图的偏移和长度都按long计算；同一块内不相连的区间都保留，精确到字节
+ */
+public class MediaCacheBlockMapTest {
+	private static final long FILE_SIZE = 5L * 1024 * 1024 * 1024 + 12345;
+	private static final int BLOCK_SIZE = MediaCacheFile.DEFAULT_BLOCK_SIZE;
+
+	@Test
+	public void addBeyond2GB() {
+		MediaCacheBlockMap blockMap = new MediaCacheBlockMap(FILE_SIZE, BLOCK_SIZE);
+		long start = 3000000000L;
+		long end = start + 10 * BLOCK_SIZE + 100;
+		blockMap.add(start, end);
+
+		assertTrue(blockMap.isCached(start));
+		assertTrue(blockMap.isCached(end));
+		assertFalse(blockMap.isCached(start - 1));
+		assertFalse(blockMap.isCached(end + 1));
+		assertEquals(end - start + 1, blockMap.getCachedLength(start));
+		assertEquals(end - start + 1, blockMap.getCachedBytes());
+		assertEquals(start, blockMap.getMissingLength(0));
+		assertArrayEquals(new long[] { start, end }, blockMap.getRanges());
+	}
+
+	@Test
+	public void addToEndOfFile() {
+		MediaCacheBlockMap blockMap = new MediaCacheBlockMap(FILE_SIZE, BLOCK_SIZE);
+		long start = FILE_SIZE - 3 * BLOCK_SIZE - 7;
+		blockMap.add(start, FILE_SIZE - 1);
+
+		assertEquals(FILE_SIZE - start, blockMap.getCachedLength(start));
+		assertEquals(0, blockMap.getCachedLength(FILE_SIZE));
+		assertEquals(start - 1, blockMap.getMissingLength(1));
+	}
+
+	@Test
+	public void missingLengthLongerThanInt() {
+		MediaCacheBlockMap blockMap = new MediaCacheBlockMap(FILE_SIZE, BLOCK_SIZE);
+		blockMap.add(0, 99);
+		long missingLength = blockMap.getMissingLength(100);
+		assertEquals(FILE_SIZE - 100, missingLength);
+		assertTrue(missingLength > Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void encodeAndDecodeBeyond2GB() {
+		MediaCacheBlockMap blockMap = new MediaCacheBlockMap(FILE_SIZE, BLOCK_SIZE);
+		blockMap.add(0, 1000);
+		blockMap.add(2147483000L, 2147484000L);
+		blockMap.add(4500000000L, FILE_SIZE - 1);
+
+		MediaCacheBlockMap decoded = MediaCacheBlockMap.decode(blockMap.encode(), FILE_SIZE, BLOCK_SIZE);
+		assertArrayEquals(blockMap.getRanges(), decoded.getRanges());
+		assertEquals(blockMap.getCachedBytes(), decoded.getCachedBytes());
+		assertEquals(blockMap.getCachedBytes(), MediaCacheBlockMap.getCachedBytes(blockMap.encode()));
+	}
+
+	@Test
+	public void disjointRangesInOneBlockAreKept() {
+		MediaCacheBlockMap blockMap = new MediaCacheBlockMap(FILE_SIZE, BLOCK_SIZE);
+		long blockStart = 3000L * BLOCK_SIZE;
+		blockMap.add(blockStart + 100, blockStart + 199);
+		blockMap.add(blockStart + 1000, blockStart + 1099);
+
+		assertEquals(200, blockMap.getCachedBytes());
+		assertArrayEquals(new long[] { blockStart + 100, blockStart + 199, blockStart + 1000, blockStart + 1099 }, blockMap.getRanges());
+		assertEquals(800, blockMap.getMissingLength(blockStart + 200));
+		assertEquals(100, blockMap.getCachedLength(blockStart + 1000));
+		MediaCacheBlockMap decoded = MediaCacheBlockMap.decode(blockMap.encode(), FILE_SIZE, BLOCK_SIZE);
+		assertArrayEquals(blockMap.getRanges(), decoded.getRanges());
+
+		// 补上中间的缺口后合并成一段
+		blockMap.add(blockStart + 200, blockStart + 999);
+		assertEquals(1000, blockMap.getCachedBytes());
+		assertArrayEquals(new long[] { blockStart + 100, blockStart + 1099 }, blockMap.getRanges());
+
+		// 补满整块后置位
+		blockMap.add(blockStart, blockStart + 99);
+		blockMap.add(blockStart + 1100, blockStart + BLOCK_SIZE - 1);
+		assertTrue(blockMap.isBlockCached(3000));
+		assertEquals(BLOCK_SIZE, blockMap.getCachedBytes());
+	}
+
+	@Test
+	public void randomInsertsKeepEveryByte() {
+		long fileSize = 20 * BLOCK_SIZE + 321;
+		MediaCacheBlockMap blockMap = new MediaCacheBlockMap(fileSize, BLOCK_SIZE);
+		BitSet expected = new BitSet((int) fileSize);
+		Random random = new Random(42);
+		for (int n = 0; n < 500; n++) {
+			int start = random.nextInt((int) fileSize);
+			int end = Math.min(start + random.nextInt(BLOCK_SIZE / 4), (int) fileSize - 1);
+			blockMap.add(start, end);
+			expected.set(start, end + 1);
+			assertEquals(expected.cardinality(), blockMap.getCachedBytes());
+		}
+		for (int pos = 0; pos < fileSize; pos += 7) {
+			assertEquals(expected.get(pos), blockMap.isCached(pos));
+			if (expected.get(pos)) {
+				assertEquals(expected.nextClearBit(pos) - pos, blockMap.getCachedLength(pos));
+			} else {
+				int next = expected.nextSetBit(pos);
+				assertEquals((next < 0 ? fileSize : next) - pos, blockMap.getMissingLength(pos));
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.cqh.android.media;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 日志按写入顺序重放；写入数据库后丢弃之前的记录，之后追加的记录和重新打开后的重放都不受影响
+ */
+public class MediaCacheJournalTest {
+	private File mDir;
+	private File mFile;
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = File.createTempFile("journal", "");
+		mDir.delete();
+		mDir.mkdirs();
+		mFile = new File(mDir, MediaCacheJournal.JOURNAL_NAME);
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mDir.delete();
+	}
+
+	/**
+	 * 用新的实例重放，和进程重启后一样
+	 */
+	private List<String> replay() {
+		final ArrayList<String> records = new ArrayList<String>();
+		new MediaCacheJournal(mFile).replay(new MediaCacheJournal.Visitor() {
+			@Override
+			public void onAdd(String fileName, long start, long end) {
+				records.add("add " + fileName + " " + start + "-" + end);
+			}
+
+			@Override
+			public void onReset(String fileName, long fileSize) {
+				records.add("reset " + fileName + " " + fileSize);
+			}
+
+			@Override
+			public void onRemove(String fileName, long start, long end) {
+				records.add("remove " + fileName + " " + start + "-" + end);
+			}
+		});
+		return records;
+	}
+
+	@Test
+	public void replayInWriteOrder() {
+		MediaCacheJournal journal = new MediaCacheJournal(mFile);
+		journal.appendReset("a.cache", 5000000000L);
+		journal.appendAdd("a.cache", 0, 99);
+		journal.appendAdd("b.cache", 3000000000L, 3000000099L);
+		journal.appendRemove("a.cache", 0, 65535);
+
+		assertEquals(Arrays.asList("reset a.cache 5000000000", "add a.cache 0-99", "add b.cache 3000000000-3000000099",
+				"remove a.cache 0-65535"), replay());
+		// 重放不改变日志
+		assertEquals(4, replay().size());
+	}
+
+	@Test
+	public void discardBeforeKeepsLaterRecords() {
+		MediaCacheJournal journal = new MediaCacheJournal(mFile);
+		journal.appendAdd("a.cache", 0, 99);
+		journal.appendAdd("a.cache", 100, 199);
+		long flushedLength = journal.getLength();
+		// 写入数据库期间追加的记录
+		journal.appendAdd("a.cache", 200, 299);
+		journal.discardBefore(flushedLength);
+		journal.appendAdd("a.cache", 300, 399);
+
+		assertEquals(Arrays.asList("add a.cache 200-299", "add a.cache 300-399"), replay());
+		assertEquals(mFile.length(), journal.getLength());
+		assertFalse(new File(mFile.getPath() + MediaCacheJournal.TMP_SUFFIX).exists());
+	}
+
+	@Test
+	public void discardEverything() {
+		MediaCacheJournal journal = new MediaCacheJournal(mFile);
+		journal.appendReset("a.cache", 1000);
+		journal.appendAdd("a.cache", 0, 999);
+		journal.discardBefore(journal.getLength());
+
+		assertTrue(replay().isEmpty());
+		assertEquals(0, mFile.length());
+		assertEquals(0, journal.getLength());
+		// 清空后照常追加
+		journal.appendAdd("a.cache", 0, 9);
+		assertEquals(Arrays.asList("add a.cache 0-9"), replay());
+	}
+
+	@Test
+	public void appendAfterReplayContinuesAtEnd() {
+		MediaCacheJournal journal = new MediaCacheJournal(mFile);
+		journal.appendAdd("a.cache", 0, 99);
+
+		MediaCacheJournal reopened = new MediaCacheJournal(mFile);
+		reopened.replay(new MediaCacheJournal.Visitor() {
+			@Override
+			public void onAdd(String fileName, long start, long end) {
+			}
+
+			@Override
+			public void onReset(String fileName, long fileSize) {
+			}
+
+			@Override
+			public void onRemove(String fileName, long start, long end) {
+			}
+		});
+		reopened.appendAdd("a.cache", 100, 199);
+
+		assertEquals(Arrays.asList("add a.cache 0-99", "add a.cache 100-199"), replay());
+	}
+}
@@ -0,0 +1,142 @@
+package com.cqh.android.media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 一个写入者、两个读取者按不同的速度读写，检查每个读取者都按顺序读到完整的数据，
+ * 只有缓冲区满时写入者才等待，一个读取者没读时另一个读取者照常读取
+ */
+public class MediaRingBufferTest {
+	private static final int CAPACITY = 1000;
+	private static final int TOTAL_LENGTH = 100 * 1000;
+
+	/**
+	 * 写入TOTAL_LENGTH字节，位置pos的字节为pos的低8位，每次最多写chunk字节
+	 */
+	private Thread startWriter(final MediaRingBuffer ring, final int chunk) {
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					long pos = 0;
+					while (pos < TOTAL_LENGTH) {
+						int writable = ring.awaitWritable();
+						if (writable < 0) {
+							break;
+						}
+						int length = (int) Math.min(Math.min(writable, chunk), TOTAL_LENGTH - pos);
+						int offset = ring.getWriteOffset();
+						for (int i = 0; i < length; i++) {
+							ring.getBuffer()[offset + i] = (byte) (pos + i);
+						}
+						ring.commitWrite(length);
+						pos += length;
+					}
+				} catch (InterruptedException e) {
+					// 结束
+				} finally {
+					ring.finish();
+				}
+			}
+		};
+		writer.start();
+		return writer;
+	}
+
+	/**
+	 * 读完所有数据，检查内容，每次读取后等待sleepMillis
+	 *
+	 * @return 读取的长度
+	 */
+	private long readAll(MediaRingBuffer ring, int reader, long sleepMillis) throws InterruptedException {
+		long pos = 0;
+		int length;
+		while ((length = ring.awaitReadable(reader)) > 0) {
+			int offset = ring.getReadOffset(reader);
+			for (int i = 0; i < length; i++) {
+				assertEquals((byte) (pos + i), ring.getBuffer()[offset + i]);
+			}
+			assertTrue(ring.getOccupancy() <= CAPACITY);
+			ring.commitRead(reader, length);
+			pos += length;
+			if (sleepMillis > 0) {
+				Thread.sleep(sleepMillis);
+			}
+		}
+		return pos;
+	}
+
+	@Test
+	public void everyReaderGetsAllDataInOrder() throws Exception {
+		final MediaRingBuffer ring = new MediaRingBuffer(new byte[CAPACITY], 2);
+		Thread writer = startWriter(ring, 333);
+		final long[] cacheLength = new long[1];
+		Thread cacheReader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					cacheLength[0] = readAll(ring, 1, 0);
+				} catch (InterruptedException e) {
+					// 结束
+				}
+			}
+		};
+		cacheReader.start();
+		assertEquals(TOTAL_LENGTH, readAll(ring, 0, 0));
+		cacheReader.join();
+		writer.join();
+		assertEquals(TOTAL_LENGTH, cacheLength[0]);
+		MediaRingBuffer.Stats stats = ring.getStats();
+		assertEquals(TOTAL_LENGTH, stats.writtenBytes);
+		assertEquals(0, stats.occupancy);
+		assertTrue(stats.peakOccupancy <= CAPACITY);
+		assertTrue(stats.peakLag[0] <= CAPACITY);
+		assertTrue(stats.peakLag[1] <= CAPACITY);
+	}
+
+	@Test
+	public void writerWaitsOnlyWhenFull() throws Exception {
+		final MediaRingBuffer ring = new MediaRingBuffer(new byte[CAPACITY], 2);
+		// 读取者1还没开始读，写入者写满后等待
+		Thread writer = startWriter(ring, CAPACITY);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (ring.getStats().fullWaitCount == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(CAPACITY, ring.getOccupancy());
+		assertEquals(CAPACITY, ring.getStats().writtenBytes);
+		// 读取者0读完已写入的数据，不会等读取者1
+		int length = ring.awaitReadable(0);
+		assertEquals(CAPACITY, length);
+		ring.commitRead(0, length);
+		assertEquals(CAPACITY, ring.getOccupancy());
+		ring.cancel();
+		writer.join();
+		// 取消后已写入的数据照常读完
+		assertEquals(CAPACITY, readAll(ring, 1, 0));
+		assertEquals(-1, ring.awaitReadable(0));
+	}
+
+	@Test
+	public void wrapsAroundTheEnd() throws Exception {
+		MediaRingBuffer ring = new MediaRingBuffer(new byte[8], 1);
+		ring.awaitWritable();
+		ring.commitWrite(6);
+		assertEquals(6, ring.awaitReadable(0));
+		ring.commitRead(0, 6);
+		// 只能连续写到数组末尾，剩下的从头开始
+		assertEquals(2, ring.awaitWritable());
+		ring.commitWrite(2);
+		assertEquals(6, ring.awaitWritable());
+		assertEquals(0, ring.getWriteOffset());
+		ring.commitWrite(3);
+		assertEquals(2, ring.awaitReadable(0));
+		ring.commitRead(0, 2);
+		assertEquals(3, ring.awaitReadable(0));
+		assertEquals(0, ring.getReadOffset(0));
+		assertEquals(11, ring.getStats().writtenBytes);
+	}
+}
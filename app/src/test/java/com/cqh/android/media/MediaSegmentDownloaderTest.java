@@ -0,0 +1,85 @@
+package com.cqh.android.media;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用缓存位图代替缓存文件，检查请求线程和下载线程登记的区间：请求线程最多登记一个分段，之后的缺失区间留给下载线程
+ */
+public class MediaSegmentDownloaderTest {
+	private static final long FILE_SIZE = 20L * MediaSegmentDownloader.SEGMENT_SIZE + 123;
+	private static final int SEGMENT_SIZE = MediaSegmentDownloader.SEGMENT_SIZE;
+
+	private MediaCacheBlockMap mBlockMap;
+	private MediaSegmentDownloader mDownloader;
+
+	@Before
+	public void setUp() {
+		MediaSegmentDownloader.setReadAheadHorizon(MediaSegmentDownloader.DEFAULT_READ_AHEAD_BYTES, 0);
+		mBlockMap = new MediaCacheBlockMap(FILE_SIZE, MediaCacheFile.DEFAULT_BLOCK_SIZE);
+		mDownloader = new MediaSegmentDownloader(null, null, FILE_SIZE) {
+			@Override
+			long getCachedLength(long position) {
+				return mBlockMap.getCachedLength(position);
+			}
+
+			@Override
+			long getNeedDownloadLength(long position) {
+				long missingLength = mBlockMap.getMissingLength(position);
+				return missingLength == 0 && position < FILE_SIZE ? -1 : missingLength;
+			}
+		};
+	}
+
+	@Test
+	public void workersGetSegmentsOnEmptyMap() {
+		mDownloader.setPlayhead(0, -1);
+		assertEquals(SEGMENT_SIZE, mDownloader.reserveForeground(0, mBlockMap.getMissingLength(0)));
+
+		long[] segment = mDownloader.reserveSegment();
+		assertNotNull(segment);
+		assertArrayEquals(new long[] { SEGMENT_SIZE, 2L * SEGMENT_SIZE - 1 }, segment);
+		assertArrayEquals(new long[] { 2L * SEGMENT_SIZE, 3L * SEGMENT_SIZE - 1 }, mDownloader.reserveSegment());
+	}
+
+	@Test
+	public void workerBeforeForegroundLeavesFirstSegment() {
+		mDownloader.setPlayhead(0, -1);
+		// 下载线程先于请求线程登记，跳过播放位置的一个分段
+		assertArrayEquals(new long[] { SEGMENT_SIZE, 2L * SEGMENT_SIZE - 1 }, mDownloader.reserveSegment());
+		assertEquals(SEGMENT_SIZE, mDownloader.reserveForeground(0, mBlockMap.getMissingLength(0)));
+	}
+
+	@Test
+	public void foregroundStopsAtWorkerSegment() {
+		mBlockMap.add(0, 99);
+		mDownloader.setPlayhead(100, -1);
+		long[] segment = mDownloader.reserveSegment();
+		assertEquals(100 + SEGMENT_SIZE, segment[0]);
+		// 播放位置跳到下载线程的分段之前不远处
+		long position = segment[0] - 1000;
+		assertEquals(1000, mDownloader.reserveForeground(position, mBlockMap.getMissingLength(position)));
+		// 播放位置正在被下载线程下载时请求线程等待
+		assertEquals(0, mDownloader.reserveForeground(segment[0] + 10, mBlockMap.getMissingLength(segment[0] + 10)));
+	}
+
+	@Test
+	public void stopsAtReadAheadLimit() {
+		mDownloader.setPlayhead(0, -1);
+		mDownloader.reserveForeground(0, mBlockMap.getMissingLength(0));
+		long reserved = 0;
+		long[] segment;
+		while ((segment = mDownloader.reserveSegment()) != null) {
+			assertTrue(segment[1] < MediaSegmentDownloader.DEFAULT_READ_AHEAD_BYTES);
+			reserved += segment[1] - segment[0] + 1;
+		}
+		assertEquals(MediaSegmentDownloader.DEFAULT_READ_AHEAD_BYTES - SEGMENT_SIZE, reserved);
+		assertNull(mDownloader.reserveSegment());
+	}
+}
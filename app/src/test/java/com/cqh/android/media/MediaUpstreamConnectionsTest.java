@@ -0,0 +1,171 @@
+package com.cqh.android.media;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 用本地支持长连接的源站统计建立了多少个连接，检查多次Range请求之间是否复用了连接
+ * 源站的内容不需要真的存在，位置pos的字节为pos的低8位
+ */
+public class MediaUpstreamConnectionsTest {
+	private static final long FILE_SIZE = 10 * 1024 * 1024;
+
+	private ServerSocket mServer;
+	private Thread mServerThread;
+	private final AtomicInteger mAcceptCount = new AtomicInteger();
+
+	@Before
+	public void startOrigin() throws IOException {
+		mServer = new ServerSocket(0);
+		mServerThread = new Thread() {
+			@Override
+			public void run() {
+				while (!mServer.isClosed()) {
+					try {
+						final Socket socket = mServer.accept();
+						mAcceptCount.incrementAndGet();
+						new Thread() {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						}.start();
+					} catch (IOException e) {
+						// 关闭源站
+					}
+				}
+			}
+		};
+		mServerThread.start();
+	}
+
+	@After
+	public void stopOrigin() throws Exception {
+		mServer.close();
+		mServerThread.join();
+	}
+
+	/**
+	 * 在同一个连接上依次处理请求，直到客户端关闭连接
+	 */
+	private void serve(Socket socket) {
+		try {
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			while (true) {
+				StringBuilder request = new StringBuilder();
+				int b;
+				while ((b = in.read()) != -1) {
+					request.append((char) b);
+					if (request.length() >= 4 && request.substring(request.length() - 4).equals("\r\n\r\n")) {
+						break;
+					}
+				}
+				if (b == -1) {
+					return;
+				}
+				long start = 0;
+				long end = FILE_SIZE - 1;
+				int rangeIndex = request.indexOf("Range: bytes=");
+				if (rangeIndex >= 0) {
+					int lineEnd = request.indexOf("\r\n", rangeIndex);
+					String[] range = request.substring(rangeIndex + 13, lineEnd).split("-", -1);
+					start = Long.parseLong(range[0]);
+					if (range[1].length() > 0) {
+						end = Math.min(Long.parseLong(range[1]), FILE_SIZE - 1);
+					}
+				}
+				StringBuilder header = new StringBuilder();
+				header.append("HTTP/1.1 206 Partial Content\r\n");
+				header.append("Content-Range: bytes ").append(start).append("-").append(end).append("/").append(FILE_SIZE).append("\r\n");
+				header.append("Content-Length: ").append(end - start + 1).append("\r\n");
+				header.append("Keep-Alive: timeout=30\r\n\r\n");
+				out.write(header.toString().getBytes("US-ASCII"));
+				byte[] body = new byte[8 * 1024];
+				for (long pos = start; pos <= end; pos += body.length) {
+					int length = (int) Math.min(body.length, end - pos + 1);
+					for (int i = 0; i < length; i++) {
+						body[i] = (byte) (pos + i);
+					}
+					out.write(body, 0, length);
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			// 客户端断开
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// 忽略
+			}
+		}
+	}
+
+	private URL getUrl() throws IOException {
+		return new URL("http://127.0.0.1:" + mServer.getLocalPort() + "/media.mp3");
+	}
+
+	/**
+	 * 请求start到end，读取readLength字节后放弃读取
+	 */
+	private void request(long start, long end, int readLength) throws Exception {
+		HttpURLConnection connection = MediaUpstreamConnections.open(getUrl(), start, end);
+		connection.connect();
+		assertEquals(HttpURLConnection.HTTP_PARTIAL, connection.getResponseCode());
+		assertEquals(end, HttpUtils.getRangeEnd(connection));
+		InputStream data = connection.getInputStream();
+		for (int i = 0; i < readLength; i++) {
+			assertEquals((byte) (start + i), (byte) data.read());
+		}
+		MediaUpstreamConnections.release(connection, data, end - start + 1 - readLength);
+		// 剩下的响应内容在后台丢弃，等它完成后连接才回到长连接池
+		MediaUpstreamConnections.awaitDrained();
+	}
+
+	@Test
+	public void boundedRangesReuseConnection() throws Exception {
+		request(0, 64 * 1024 - 1, 64 * 1024);
+		request(1024 * 1024, 1024 * 1024 + 100 * 1024 - 1, 100 * 1024);
+		request(5 * 1024 * 1024, 5 * 1024 * 1024 + 999, 1000);
+		assertEquals(1, mAcceptCount.get());
+	}
+
+	@Test
+	public void smallRemainderIsDrainedAndReused() throws Exception {
+		request(0, MediaUpstreamConnections.DRAIN_LIMIT - 1, 100);
+		request(2 * 1024 * 1024, 2 * 1024 * 1024 + 4095, 4096);
+		assertEquals(1, mAcceptCount.get());
+	}
+
+	@Test
+	public void largeRemainderIsNotReused() throws Exception {
+		request(0, FILE_SIZE - 1, 100);
+		request(3 * 1024 * 1024, 3 * 1024 * 1024 + 4095, 4096);
+		assertEquals(2, mAcceptCount.get());
+	}
+
+	@Test
+	public void unknownRemainderIsNotDrained() throws Exception {
+		HttpURLConnection connection = MediaUpstreamConnections.open(getUrl(), 0, 1023);
+		connection.connect();
+		InputStream data = connection.getInputStream();
+		data.read();
+		// 不知道剩多少时直接断开，不读取
+		MediaUpstreamConnections.release(connection, data, -1);
+		request(4096, 8191, 4096);
+		assertEquals(2, mAcceptCount.get());
+	}
+}